@@ -0,0 +1,306 @@
+package org.forkbird;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.IndexedPatterns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Long-running analysis server: keeps an {@link IncrementalPipeline} per symbol, so a request costs the scoring only
+ * and not a JVM start and a parse. Before every request the pipeline picks up the bars appended to the file, or
+ * reloads it when it was rewritten.
+ * <p>
+ * Listens on the loopback interface only. {@code GET /score?symbol=EURUSD&size=8} scores the latest pattern of the
+ * symbol, like a regular run; optional parameters are {@code minCosine}, {@code minLengthRatio}, {@code limit} (number
+ * of returned results), {@code all=true} to match all pairs as {@code calculateAll} does, which is what the forecast
+ * success ratio is computed from, and {@code ann=true} (see below). The symbol file is {@code <symbol>.pro},
+ * {@code HL_<symbol>.pro} or {@code HL_<symbol>} in the served directory. The response is a JSON object with the
+ * fields of every {@link CosineResult}.
+ * <p>
+ * The all-pairs results of a symbol are kept for the {@value #cachedAllPairs} most recent sizes and thresholds until
+ * the pipeline gets a new change, so repeating an {@code all=true} request does not rescore every pair.
+ * <p>
+ * With {@code ann=true} the latest pattern is scored against the candidates of an {@link LshIndex} only, which may
+ * miss matches (see {@link LshIndex#main} for the recall of its settings). The index of a size is built by the first
+ * such request and serves every request until the pipeline gets a new change, so it pays off when a bar is queried
+ * more often than it confirms a fractal.
+ */
+final class AnalysisServer implements AutoCloseable {
+
+    private static final Pattern symbolPattern = Pattern.compile("[A-Za-z0-9._#-]+");
+    private static final int cachedAllPairs = 4;
+
+    private final File directory;
+    private final BigDecimal cosineMinValue;
+    private final BigDecimal minLengthRatio;
+    private final Map<File, Symbol> symbols = new ConcurrentHashMap<>();
+    private final HttpServer server;
+
+    AnalysisServer(File directory, int port, BigDecimal cosineMinValue, BigDecimal minLengthRatio) throws IOException {
+        this.directory = directory;
+        this.cosineMinValue = cosineMinValue;
+        this.minLengthRatio = minLengthRatio;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/score", this::score);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void score(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, error("Only GET is supported"));
+                return;
+            }
+            Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+            String symbol = parameters.getOrDefault("symbol", "");
+            if (!symbolPattern.matcher(symbol).matches()) {
+                respond(exchange, 400, error("Invalid symbol: " + symbol));
+                return;
+            }
+            int patternSize;
+            BigDecimal cosineMinValue;
+            BigDecimal minLengthRatio;
+            int limit;
+            try {
+                patternSize = Integer.parseInt(parameters.getOrDefault("size", ""));
+                cosineMinValue = parameters.containsKey("minCosine") ? new BigDecimal(parameters.get("minCosine")) : this.cosineMinValue;
+                minLengthRatio = parameters.containsKey("minLengthRatio") ? new BigDecimal(parameters.get("minLengthRatio")) : this.minLengthRatio;
+                limit = parameters.containsKey("limit") ? Integer.parseInt(parameters.get("limit")) : Integer.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, error("Invalid number: " + e.getMessage()));
+                return;
+            }
+            if (patternSize < 1 || limit < 0) {
+                respond(exchange, 400, error("size must be positive and limit not negative"));
+                return;
+            }
+            Optional<File> file = symbolFile(symbol);
+            if (file.isEmpty()) {
+                respond(exchange, 404, error("Unknown symbol: " + symbol));
+                return;
+            }
+            boolean all = Boolean.parseBoolean(parameters.get("all"));
+            boolean ann = Boolean.parseBoolean(parameters.get("ann"));
+            if (all && ann) {
+                respond(exchange, 400, error("ann scores the latest pattern only and cannot be combined with all"));
+                return;
+            }
+            List<CosineResult> cosineResults;
+            try {
+                cosineResults = score(file.get(), patternSize, cosineMinValue, minLengthRatio, all, ann);
+            } catch (IOException | RuntimeException e) {
+                respond(exchange, 500, error("Cannot score %s: %s".formatted(symbol, e)));
+                return;
+            }
+            respond(exchange, 200, toJson(symbol, patternSize, cosineResults, limit));
+        }
+    }
+
+    List<CosineResult> score(File file, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRatio, boolean all) throws IOException {
+        return score(file, patternSize, cosineMinValue, minLengthRatio, all, false);
+    }
+
+    List<CosineResult> score(File file, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRatio, boolean all, boolean ann) throws IOException {
+        Symbol symbol = symbols.computeIfAbsent(file, Symbol::new);
+        synchronized (symbol) {
+            IncrementalPipeline pipeline = symbol.pipeline;
+            pipeline.poll();
+            if (symbol.version != pipeline.version()) {
+                symbol.allPairs.clear();
+                symbol.indexes.clear();
+                symbol.version = pipeline.version();
+            }
+            if (ann) {
+                if (pipeline.patternCount(patternSize) <= 0) {
+                    return List.of();
+                }
+                Approximate approximate = symbol.indexes.computeIfAbsent(patternSize, size -> {
+                    IndexedPatterns indexedPatterns = IndexedPatterns.of(FractalsDotProduct.fractalsPatterns(pipeline.changes(), size));
+                    return new Approximate(indexedPatterns, LshIndex.of(indexedPatterns.vectors()));
+                });
+                return FractalsDotProduct.calculateCosines(approximate.indexedPatterns, 0, cosineMinValue, minLengthRatio, approximate.index);
+            }
+            if (all) {
+                AllPairs key = new AllPairs(patternSize, cosineMinValue.stripTrailingZeros(), minLengthRatio.stripTrailingZeros());
+                List<CosineResult> cosineResults = symbol.allPairs.get(key);
+                if (cosineResults == null) {
+                    cosineResults = FractalsDotProduct.score(pipeline.changes(), patternSize, cosineMinValue, minLengthRatio, true);
+                    symbol.allPairs.put(key, cosineResults);
+                }
+                return cosineResults;
+            }
+            return pipeline.patternCount(patternSize) > 0 ? pipeline.scoreLatest(patternSize, cosineMinValue, minLengthRatio) : List.of();
+        }
+    }
+
+    /**
+     * The pipeline of a symbol file and the all-pairs results and indexes of its current
+     * {@link IncrementalPipeline#version()}.
+     */
+    private static final class Symbol {
+
+        private final IncrementalPipeline pipeline;
+        private final Map<AllPairs, List<CosineResult>> allPairs = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<AllPairs, List<CosineResult>> eldest) {
+                return size() > cachedAllPairs;
+            }
+        };
+        private final Map<Integer, Approximate> indexes = new HashMap<>();
+        private long version = -1;
+
+        Symbol(File file) {
+            this.pipeline = new IncrementalPipeline(file);
+        }
+    }
+
+    private record AllPairs(int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRatio) {
+    }
+
+    private record Approximate(IndexedPatterns indexedPatterns, LshIndex index) {
+    }
+
+    private Optional<File> symbolFile(String symbol) {
+        return Arrays.stream(new String[]{symbol + ".pro", "HL_" + symbol + ".pro", "HL_" + symbol})
+                .map(name -> new File(directory, name))
+                .filter(File::isFile)
+                .findFirst();
+    }
+
+    private static Map<String, String> parameters(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        string(json, message);
+        return json.append('}').toString();
+    }
+
+    static String toJson(String symbol, int patternSize, List<CosineResult> cosineResults, int limit) {
+        StringBuilder json = new StringBuilder("{\"symbol\":");
+        string(json, symbol);
+        json.append(",\"patternSize\":").append(patternSize)
+                .append(",\"matches\":").append(cosineResults.size())
+                .append(",\"forecastSuccess\":").append(FractalsDotProduct.forecastSuccess(cosineResults).orElse(null))
+                .append(",\"results\":[");
+        for (int i = 0; i < Math.min(limit, cosineResults.size()); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            CosineResult cosineResult = cosineResults.get(i);
+            json.append("{\"cosine\":").append(cosineResult.cosine())
+                    .append(",\"lengthRatio\":").append(cosineResult.lengthRatio())
+                    .append(",\"afterCosine\":").append(cosineResult.afterCosine())
+                    .append(",\"base\":");
+            pattern(json, cosineResult.base());
+            json.append(",\"target\":");
+            pattern(json, cosineResult.target());
+            json.append(",\"afterBase\":");
+            pattern(json, cosineResult.afterBase());
+            json.append(",\"afterTarget\":");
+            pattern(json, cosineResult.afterTarget());
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void pattern(StringBuilder json, FractalsPattern fractalsPattern) {
+        if (fractalsPattern == null) {
+            json.append("null");
+            return;
+        }
+        json.append("{\"fractals\":[");
+        List<Fractal> fractals = fractalsPattern.fractals();
+        for (int i = 0; i < fractals.size(); i++) {
+            Fractal fractal = fractals.get(i);
+            json.append(i > 0 ? ",{\"dateTime\":\"" : "{\"dateTime\":\"");
+            DateTimeFormatter.ISO_OFFSET_DATE_TIME.formatTo(fractal.dateTime(), json);
+            json.append("\",\"value\":").append(fractal.value())
+                    .append(",\"change\":").append(fractal.change())
+                    .append('}');
+        }
+        json.append("]}");
+    }
+
+    private static void string(StringBuilder json, String value) {
+        json.append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                default -> {
+                    if (c < ' ') {
+                        json.append("\\u%04x".formatted((int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            throw new IllegalArgumentException("syntax: directory port minCosine minLengthRatio");
+        }
+        SimilarityMetric.checkSelected();
+        // the JDK server writes headers and body separately; without TCP_NODELAY every response waits for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        AnalysisServer server = new AnalysisServer(new File(args[0]), Integer.parseInt(args[1]), new BigDecimal(args[2]), new BigDecimal(args[3]));
+        System.out.printf("Listening on http://%s:%d/score%n", InetAddress.getLoopbackAddress().getHostAddress(), server.port());
+    }
+}
@@ -0,0 +1,269 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.BoundCounts;
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.IndexedPatterns;
+import org.forkbird.FractalsDotProduct.ScoredPair;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static org.forkbird.FractalsDotProduct.bigDecimalScale;
+import static org.forkbird.FractalsDotProduct.minAfterCosine;
+import static org.forkbird.FractalsDotProduct.roundingMode;
+
+/**
+ * Deadline-bounded search of one price file and pattern size that can be stopped after any {@link #step} and still
+ * report the best matches found so far.
+ * <p>
+ * The candidates are scored in chunks in priority order: in the regular run the targets of the latest pattern, most
+ * recent first ({@code -DanytimeOrder=recent}) or the candidates of an {@link LshIndex} first
+ * ({@code -DanytimeOrder=index}); with {@code calculateAll} one base pattern per chunk, most recent first. Every match
+ * is ranked by {@link ScoredPair#bestFirst} into the best {@code minCosineResults}, and counted as a hit or a miss of
+ * the forecast when both patterns have a following pattern. A search that runs to the end therefore reports the same
+ * first {@code minCosineResults} as the full run, and its forecast success is that of all matches.
+ * <p>
+ * A search waits for its change series and builds its patterns (and, for {@code index}, its {@link LshIndex}) only
+ * when {@link #run} gets to it, so searches the deadline does not reach cost nothing. {@code -DbudgetMillis} turns the
+ * mode on for {@link FractalsDotProduct#main} (0, the default, runs the full search); {@link #run} publishes a
+ * {@link Snapshot} of every search at most every {@code -DpublishMillis} (250 by default) and once more when the
+ * searches end.
+ */
+final class AnytimeSearch {
+
+    static final long budgetMillis = Long.getLong("budgetMillis", 0);
+    static final long publishMillis = Long.getLong("publishMillis", 250);
+    static final String order = System.getProperty("anytimeOrder", "recent");
+
+    private static final int chunkSize = 4096;
+
+    private final File file;
+    private final int patternSize;
+    private final Future<List<Fractal>> changes;
+    private final BigDecimal cosineMinValue;
+    private final BigDecimal minLengthRation;
+    private final boolean calculateAll;
+    private final String priorityOrder;
+    private final TopK best;
+    private final BoundCounts boundCounts = new BoundCounts();
+    private IndexedPatterns indexedPatterns;
+    private SimilarityMetric metric;
+    private int[] priority;
+    private int next;
+    private long matches;
+    private long hits;
+    private long misses;
+
+    private AnytimeSearch(File file, int patternSize, Future<List<Fractal>> changes, BigDecimal cosineMinValue, BigDecimal minLengthRation, int keep, boolean calculateAll, String order) {
+        if (!order.equals("recent") && !order.equals("index")) {
+            throw new IllegalArgumentException("Unknown anytimeOrder: %s, expected recent or index".formatted(order));
+        }
+        this.file = file;
+        this.patternSize = patternSize;
+        this.changes = changes;
+        this.cosineMinValue = cosineMinValue;
+        this.minLengthRation = minLengthRation;
+        this.calculateAll = calculateAll;
+        this.priorityOrder = order;
+        this.best = new TopK(keep);
+    }
+
+    /**
+     * A search over the patterns of {@code patternSize} in the change series {@code changes} will complete with, that
+     * keeps the best {@code keep} matches, in the order of {@code -DanytimeOrder}.
+     */
+    static AnytimeSearch of(File file, Future<List<Fractal>> changes, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, int keep, boolean calculateAll) {
+        return new AnytimeSearch(file, patternSize, changes, cosineMinValue, minLengthRation, keep, calculateAll, order);
+    }
+
+    static AnytimeSearch of(File file, List<Fractal> changes, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, int keep, boolean calculateAll, String order) {
+        return new AnytimeSearch(file, patternSize, CompletableFuture.completedFuture(changes), cosineMinValue, minLengthRation, keep, calculateAll, order);
+    }
+
+    /**
+     * Builds the patterns and the priority of this search once its change series is there, waiting for it until
+     * {@code deadlineNanos} at the most; false when the deadline passed first.
+     */
+    boolean load(long deadlineNanos) {
+        if (indexedPatterns != null) {
+            return true;
+        }
+        List<Fractal> series;
+        try {
+            series = changes.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+        IndexedPatterns patterns = IndexedPatterns.of(FractalsDotProduct.fractalsPatterns(series, patternSize));
+        metric = SimilarityMetric.selected(patterns.vectors());
+        priority = priority(patterns.vectors(), priorityOrder, calculateAll);
+        indexedPatterns = patterns;
+        return true;
+    }
+
+    /**
+     * Indexes of the targets (or, with {@code calculateAll}, of the bases) in the order they are scored.
+     */
+    private static int[] priority(PatternVectors vectors, String order, boolean calculateAll) {
+        int count = vectors.count();
+        return switch (order) {
+            case "recent" -> IntStream.range(0, count).toArray();
+            case "index" -> {
+                if (calculateAll || count == 0) {
+                    yield IntStream.range(0, count).toArray();
+                }
+                int[] candidates = LshIndex.of(vectors).candidates(0);
+                BitSet first = new BitSet(count);
+                Arrays.stream(candidates).forEach(first::set);
+                yield IntStream.concat(first.stream(), IntStream.range(0, count).filter(target -> !first.get(target))).toArray();
+            }
+            default -> throw new IllegalArgumentException("Unknown anytimeOrder: %s, expected recent or index".formatted(order));
+        };
+    }
+
+    /**
+     * Scores the next chunk of candidates; false when there is nothing left to score.
+     */
+    boolean step() {
+        load(Long.MAX_VALUE);
+        if (isComplete()) {
+            return false;
+        }
+        List<ScoredPair> found;
+        if (calculateAll) {
+            int base = priority[next++];
+            double[] bounds = metric.upperBounds(base);
+            found = FractalsDotProduct.scoredPairs(indexedPatterns, metric, base, IntStream.range(0, bounds.length), target -> bounds[target],
+                    cosineMinValue, minLengthRation, boundCounts).toList();
+        } else {
+            int to = Math.min(priority.length, next + chunkSize);
+            IntStream targets = Arrays.stream(priority, next, to);
+            next = to;
+            found = FractalsDotProduct.scoredPairs(indexedPatterns, metric, 0, targets, target -> metric.upperBound(0, target),
+                    cosineMinValue, minLengthRation, boundCounts).toList();
+        }
+        found.forEach(this::add);
+        return !isComplete();
+    }
+
+    private void add(ScoredPair scoredPair) {
+        best.add(scoredPair);
+        matches++;
+        int afterBase = indexedPatterns.successors()[scoredPair.base()];
+        int afterTarget = indexedPatterns.successors()[scoredPair.target()];
+        if (afterBase >= 0 && afterTarget >= 0) {
+            if (indexedPatterns.vectors().cosine(afterBase, afterTarget).compareTo(minAfterCosine) > 0) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+    }
+
+    boolean isComplete() {
+        return priority != null && next == priority.length;
+    }
+
+    /**
+     * The current best matches and counts of this search; before it is loaded, without results and with -1
+     * candidates.
+     */
+    Snapshot snapshot() {
+        if (indexedPatterns == null) {
+            return new Snapshot(file, patternSize, List.of(), 0, 0, 0, 0, -1);
+        }
+        List<CosineResult> results = best.toSortedList().stream()
+                .map(scoredPair -> FractalsDotProduct.toCosineResult(indexedPatterns, scoredPair))
+                .toList();
+        long candidates = calculateAll ? (long) priority.length * priority.length : priority.length;
+        long scored = calculateAll ? (long) next * priority.length : next;
+        return new Snapshot(file, patternSize, results, matches, hits, misses, scored, candidates);
+    }
+
+    /**
+     * Loads and steps the searches in turn until all of them are complete or {@code deadlineNanos} (of
+     * {@link System#nanoTime}) has passed, and publishes their snapshots on the way and at the end. The deadline is
+     * checked before every load and every step; a search is never stopped while it builds its patterns or inside a
+     * chunk, so the deadline is overrun by at most one of them. The steps fork into the pool {@code run} is called
+     * from.
+     *
+     * @return the last snapshot of every search, in the order of {@code searches}
+     */
+    static List<Snapshot> run(List<AnytimeSearch> searches, long deadlineNanos, Consumer<Snapshot> publish) {
+        long publishNanos = publishMillis * 1_000_000;
+        long published = System.nanoTime();
+        boolean stepped = true;
+        while (stepped && System.nanoTime() - deadlineNanos < 0) {
+            stepped = false;
+            for (AnytimeSearch search : searches) {
+                if (System.nanoTime() - deadlineNanos >= 0 || !search.load(deadlineNanos) || System.nanoTime() - deadlineNanos >= 0) {
+                    break;
+                }
+                stepped |= search.step();
+            }
+            if (stepped && System.nanoTime() - published >= publishNanos) {
+                searches.forEach(search -> publish.accept(search.snapshot()));
+                published = System.nanoTime();
+            }
+        }
+        List<Snapshot> snapshots = new ArrayList<>();
+        searches.forEach(search -> snapshots.add(search.snapshot()));
+        snapshots.forEach(publish);
+        return snapshots;
+    }
+
+    /**
+     * The best {@code results} of a search so far, the number of all its matches with their forecast hits and misses,
+     * and how many of the {@code candidates} pairs it has scored; -1 candidates for a search the deadline stopped
+     * before it was loaded.
+     */
+    record Snapshot(File file, int patternSize, List<CosineResult> results, long matches, long hits, long misses, long scored, long candidates) {
+
+        boolean complete() {
+            return scored == candidates;
+        }
+
+        /**
+         * Share of the candidate pairs scored, 1 for a complete search.
+         */
+        double coverage() {
+            return candidates > 0 ? (double) scored / candidates : candidates == 0 ? 1 : 0;
+        }
+
+        /**
+         * {@link FractalsDotProduct#forecastSuccess} of all matches found so far.
+         */
+        Optional<BigDecimal> forecastSuccess() {
+            return misses > 0
+                    ? Optional.of(BigDecimal.valueOf(hits).divide(BigDecimal.valueOf(misses), bigDecimalScale, roundingMode))
+                    : Optional.empty();
+        }
+
+        String progress() {
+            return "anytime %s patternSize=%d coverage=%.4f scored=%d/%s matches=%d best=%s forecastSuccess=%s%s".formatted(
+                    file.getName(), patternSize, coverage(), scored, candidates >= 0 ? candidates : "-", matches,
+                    results.isEmpty() ? "-" : results.getFirst().cosine(),
+                    forecastSuccess().map(BigDecimal::toPlainString).orElse("-"),
+                    complete() ? " complete" : "");
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Reads MT5 {@code yyyy.MM.dd HH:mm:ss,high,low} lines from NIO buffers straight into the primitive columns of a
+ * {@link BarSeries}, without a {@code String}, {@code ZonedDateTime} or {@code BigDecimal} per line.
+ * <p>
+ * Fields may be surrounded by whitespace. Lines the fast path cannot decode (other number notations, invalid dates,
+ * missing fields) go through {@link FractalsDotProduct#toHighLow}, so they are accepted or rejected exactly as before.
+ * Time-ordered input, ascending or descending like the {@code Bars.mq5} export, is detected and not sorted.
+ */
+final class BarParser {
+
+    private static final int chunkSize = 1 << 20;
+    private static final int dateTimeLength = "yyyy.MM.dd HH:mm:ss".length();
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private long offsetValidFrom = Long.MAX_VALUE;
+    private long offsetValidTo = Long.MIN_VALUE;
+    private int offsetSeconds;
+
+    private int size;
+    private long[] epochSeconds = new long[1024];
+    private long[] highUnscaled = new long[1024];
+    private long[] lowUnscaled = new long[1024];
+    private byte[] highScales = new byte[1024];
+    private byte[] lowScales = new byte[1024];
+    private long unscaled;
+    private int scale;
+
+    BarParser(ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+    }
+
+    static BarSeries parse(File file) throws IOException {
+        return parse(file, FractalsDotProduct.dateTimeFormatter.getZone());
+    }
+
+    static BarSeries parse(File file, ZoneId zone) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new BarParser(zone).read(channel);
+        }
+    }
+
+    static BarSeries parse(ReadableByteChannel channel) throws IOException {
+        return new BarParser(FractalsDotProduct.dateTimeFormatter.getZone()).read(channel);
+    }
+
+    private BarSeries read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        while (channel.read(buffer) >= 0) {
+            byte[] bytes = buffer.array();
+            int limit = buffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    parseLine(bytes, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            int rest = limit - lineStart;
+            if (rest == buffer.capacity()) {
+                buffer = ByteBuffer.allocate(rest * 2).put(bytes, 0, rest);
+            } else {
+                System.arraycopy(bytes, lineStart, bytes, 0, rest);
+                buffer.position(rest);
+            }
+        }
+        if (buffer.position() > 0) {
+            parseLine(buffer.array(), 0, buffer.position());
+        }
+        return toBarSeries();
+    }
+
+    private void parseLine(byte[] bytes, int from, int to) {
+        if (to > from && bytes[to - 1] == '\r') {
+            to--;
+        }
+        if (size == epochSeconds.length) {
+            grow();
+        }
+        if (!parseFast(bytes, from, to)) {
+            HighLow highLow = FractalsDotProduct.toHighLow(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+            epochSeconds[size] = highLow.dateTime().toEpochSecond();
+            highUnscaled[size] = highLow.high().unscaledValue().longValueExact();
+            highScales[size] = (byte) highLow.high().scale();
+            lowUnscaled[size] = highLow.low().unscaledValue().longValueExact();
+            lowScales[size] = (byte) highLow.low().scale();
+        }
+        size++;
+    }
+
+    private boolean parseFast(byte[] bytes, int from, int to) {
+        int dateStart = skipWhitespace(bytes, from, to);
+        int dateEnd = dateStart + dateTimeLength;
+        if (dateEnd > to) {
+            return false;
+        }
+        long localSeconds = localEpochSeconds(bytes, dateStart);
+        if (localSeconds == Long.MIN_VALUE) {
+            return false;
+        }
+        int comma = skipWhitespace(bytes, dateEnd, to);
+        if (comma >= to || bytes[comma] != ',') {
+            return false;
+        }
+        int highEnd = parseDecimal(bytes, comma + 1, to);
+        if (highEnd < 0 || highEnd >= to || bytes[highEnd] != ',') {
+            return false;
+        }
+        long high = unscaled;
+        int highScale = scale;
+        int lowEnd = parseDecimal(bytes, highEnd + 1, to);
+        if (lowEnd < 0 || (lowEnd < to && bytes[lowEnd] != ',')) {
+            return false;
+        }
+        epochSeconds[size] = toEpochSecond(localSeconds);
+        highUnscaled[size] = high;
+        highScales[size] = (byte) highScale;
+        lowUnscaled[size] = unscaled;
+        lowScales[size] = (byte) scale;
+        return true;
+    }
+
+    /**
+     * Decodes an optionally signed plain decimal surrounded by whitespace into {@link #unscaled} and {@link #scale}.
+     *
+     * @return the index after the trailing whitespace, or -1 when the field is not a plain decimal
+     */
+    private int parseDecimal(byte[] bytes, int from, int to) {
+        int i = skipWhitespace(bytes, from, to);
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                if (++digits > 18) {
+                    return -1;
+                }
+                value = value * 10 + (b - '0');
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        int end = skipWhitespace(bytes, i, to);
+        if (end < to && bytes[end] != ',') {
+            return -1;
+        }
+        unscaled = negative ? -value : value;
+        scale = Math.max(fractionDigits, 0);
+        return end;
+    }
+
+    /**
+     * Seconds since the epoch of the local date-time at {@code from}, as if it were UTC, or {@link Long#MIN_VALUE}
+     * when the text is not a valid {@code yyyy.MM.dd HH:mm:ss} date-time. {@code yyyy} is the year of the era, so year
+     * 0000 is not valid either.
+     */
+    private static long localEpochSeconds(byte[] bytes, int from) {
+        int year = digits(bytes, from, 4);
+        int month = digits(bytes, from + 5, 2);
+        int day = digits(bytes, from + 8, 2);
+        int hour = digits(bytes, from + 11, 2);
+        int minute = digits(bytes, from + 14, 2);
+        int second = digits(bytes, from + 17, 2);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || bytes[from + 4] != '.' || bytes[from + 7] != '.' || bytes[from + 10] != ' ' || bytes[from + 13] != ':' || bytes[from + 16] != ':'
+                || day > YearMonth.of(year, month).lengthOfMonth()) {
+            return Long.MIN_VALUE;
+        }
+        return daysFromCivil(year, month, day) * 86_400 + hour * 3_600L + minute * 60L + second;
+    }
+
+    private static int digits(byte[] bytes, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+
+    /**
+     * Epoch seconds of a local date-time (given as seconds since the epoch as if it were UTC) in the parser's zone,
+     * resolved like {@code ZonedDateTime.parse} (earlier offset in an overlap, shifted forward in a gap). The offset is
+     * cached for the local range between the surrounding transitions where it is unambiguous.
+     */
+    long toEpochSecond(long localSeconds) {
+        if (localSeconds >= offsetValidFrom && localSeconds < offsetValidTo) {
+            return localSeconds - offsetSeconds;
+        }
+        ZonedDateTime zoned = ZonedDateTime.of(LocalDateTime.ofEpochSecond(localSeconds, 0, ZoneOffset.UTC), zone);
+        long resolved = zoned.toEpochSecond();
+        int offset = Math.toIntExact(localSeconds - resolved);
+        ZoneOffsetTransition previous = rules.previousTransition(zoned.toInstant().plusSeconds(1));
+        ZoneOffsetTransition next = rules.nextTransition(zoned.toInstant());
+        long validFrom = previous == null ? Long.MIN_VALUE
+                : previous.toEpochSecond() + Math.max(previous.getOffsetBefore().getTotalSeconds(), previous.getOffsetAfter().getTotalSeconds());
+        long validTo = next == null ? Long.MAX_VALUE
+                : next.toEpochSecond() + Math.min(next.getOffsetBefore().getTotalSeconds(), next.getOffsetAfter().getTotalSeconds());
+        if (localSeconds >= validFrom && localSeconds < validTo) {
+            offsetValidFrom = validFrom;
+            offsetValidTo = validTo;
+            offsetSeconds = offset;
+        }
+        return resolved;
+    }
+
+    private static int skipWhitespace(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to && (bytes[i] & 0xff) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int capacity = epochSeconds.length * 2;
+        epochSeconds = Arrays.copyOf(epochSeconds, capacity);
+        highUnscaled = Arrays.copyOf(highUnscaled, capacity);
+        lowUnscaled = Arrays.copyOf(lowUnscaled, capacity);
+        highScales = Arrays.copyOf(highScales, capacity);
+        lowScales = Arrays.copyOf(lowScales, capacity);
+    }
+
+    /**
+     * Orders the parsed lines like {@link FractalsDotProduct#toHighLows} (newest first, ties in file order) and stores
+     * them oldest first.
+     */
+    private BarSeries toBarSeries() {
+        boolean ascending = true;
+        boolean descending = true;
+        for (int i = 1; i < size && (ascending || descending); i++) {
+            ascending &= epochSeconds[i] > epochSeconds[i - 1];
+            descending &= epochSeconds[i] < epochSeconds[i - 1];
+        }
+        int[] order;
+        if (ascending) {
+            order = IntStream.range(0, size).toArray();
+        } else if (descending) {
+            order = IntStream.range(0, size).map(i -> size - 1 - i).toArray();
+        } else {
+            int[] newestFirst = IntStream.range(0, size).boxed()
+                    .sorted(Comparator.comparingLong((Integer i) -> epochSeconds[i]).reversed())
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            order = IntStream.range(0, size).map(i -> newestFirst[size - 1 - i]).toArray();
+        }
+        if (ascending) {
+            return new BarSeries(Arrays.copyOf(epochSeconds, size), Arrays.copyOf(highUnscaled, size), Arrays.copyOf(highScales, size),
+                    Arrays.copyOf(lowUnscaled, size), Arrays.copyOf(lowScales, size));
+        }
+        long[] orderedEpochSeconds = new long[size];
+        long[] orderedHighUnscaled = new long[size];
+        long[] orderedLowUnscaled = new long[size];
+        byte[] orderedHighScales = new byte[size];
+        byte[] orderedLowScales = new byte[size];
+        for (int i = 0; i < size; i++) {
+            orderedEpochSeconds[i] = epochSeconds[order[i]];
+            orderedHighUnscaled[i] = highUnscaled[order[i]];
+            orderedLowUnscaled[i] = lowUnscaled[order[i]];
+            orderedHighScales[i] = highScales[order[i]];
+            orderedLowScales[i] = lowScales[order[i]];
+        }
+        return new BarSeries(orderedEpochSeconds, orderedHighUnscaled, orderedHighScales, orderedLowUnscaled, orderedLowScales);
+    }
+
+    /**
+     * Prints the throughput of this parser and of {@link FractalsDotProduct#toHighLows} on the given files.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String name : args) {
+            File file = new File(name);
+            long lines;
+            try (Stream<String> stream = Files.lines(file.toPath())) {
+                lines = stream.count();
+            }
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                BarSeries barSeries = parse(file);
+                long parsed = System.nanoTime();
+                List<HighLow> highLows;
+                try (Stream<String> stream = Files.lines(file.toPath())) {
+                    highLows = FractalsDotProduct.toHighLows(stream);
+                }
+                long end = System.nanoTime();
+                System.out.printf("%s: BarParser %.0f lines/s, toHighLows %.0f lines/s (%d bars)%n", file.getName(),
+                        lines / ((parsed - start) / 1e9), lines / ((end - parsed) / 1e9), Math.min(barSeries.size(), highLows.size()));
+            }
+        }
+    }
+}
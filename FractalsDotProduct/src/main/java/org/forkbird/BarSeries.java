@@ -0,0 +1,107 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Columnar form of a price history: one array per field, oldest bar first. Prices are kept as fixed-point unscaled
+ * values with their decimal scale, so {@link #toHighLows()} gives back exactly the {@link BigDecimal}s of the text
+ * file, and as doubles for the numeric code.
+ */
+final class BarSeries {
+
+    private static final double[] powersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    final long[] epochSeconds;
+    final long[] highUnscaled;
+    final long[] lowUnscaled;
+    final byte[] highScales;
+    final byte[] lowScales;
+    final double[] highs;
+    final double[] lows;
+
+    BarSeries(long[] epochSeconds, long[] highUnscaled, byte[] highScales, long[] lowUnscaled, byte[] lowScales) {
+        this.epochSeconds = epochSeconds;
+        this.highUnscaled = highUnscaled;
+        this.highScales = highScales;
+        this.lowUnscaled = lowUnscaled;
+        this.lowScales = lowScales;
+        this.highs = toDoubles(highUnscaled, highScales);
+        this.lows = toDoubles(lowUnscaled, lowScales);
+    }
+
+    /**
+     * @param highLows bars newest first, as returned by {@link FractalsDotProduct#toHighLows}
+     */
+    static BarSeries of(List<HighLow> highLows) {
+        int size = highLows.size();
+        long[] epochSeconds = new long[size];
+        long[] highUnscaled = new long[size];
+        long[] lowUnscaled = new long[size];
+        byte[] highScales = new byte[size];
+        byte[] lowScales = new byte[size];
+        for (int i = 0; i < size; i++) {
+            HighLow highLow = highLows.get(size - 1 - i);
+            epochSeconds[i] = highLow.dateTime().toEpochSecond();
+            highUnscaled[i] = unscaled(highLow.high());
+            highScales[i] = scale(highLow.high());
+            lowUnscaled[i] = unscaled(highLow.low());
+            lowScales[i] = scale(highLow.low());
+        }
+        return new BarSeries(epochSeconds, highUnscaled, highScales, lowUnscaled, lowScales);
+    }
+
+    int size() {
+        return epochSeconds.length;
+    }
+
+    BigDecimal high(int index) {
+        return BigDecimal.valueOf(highUnscaled[index], highScales[index]);
+    }
+
+    BigDecimal low(int index) {
+        return BigDecimal.valueOf(lowUnscaled[index], lowScales[index]);
+    }
+
+    /**
+     * The bars newest first, equal to what {@link FractalsDotProduct#toHighLows} returns for the source text.
+     */
+    List<HighLow> toHighLows() {
+        ZoneId zone = FractalsDotProduct.dateTimeFormatter.getZone();
+        List<HighLow> highLows = new ArrayList<>(size());
+        for (int i = size() - 1; i >= 0; i--) {
+            highLows.add(new HighLow(Instant.ofEpochSecond(epochSeconds[i]).atZone(zone), high(i), low(i)));
+        }
+        return highLows;
+    }
+
+    private static long unscaled(BigDecimal value) {
+        try {
+            return value.unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Price does not fit fixed-point column: %s".formatted(value), e);
+        }
+    }
+
+    private static byte scale(BigDecimal value) {
+        if (value.scale() < Byte.MIN_VALUE || value.scale() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Price does not fit fixed-point column: %s".formatted(value));
+        }
+        return (byte) value.scale();
+    }
+
+    private static double[] toDoubles(long[] unscaled, byte[] scales) {
+        double[] values = new double[unscaled.length];
+        for (int i = 0; i < unscaled.length; i++) {
+            values[i] = scales[i] >= 0 && scales[i] < powersOfTen.length && Math.abs(unscaled[i]) < 1L << 53
+                    ? unscaled[i] / powersOfTen[scales[i]]
+                    : BigDecimal.valueOf(unscaled[i], scales[i]).doubleValue();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,148 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary, memory-mapped copy of a parsed price file, stored in a {@code .fractals} directory next to the source; off
+ * unless {@code -DbarsCache=true}.
+ * <p>
+ * Layout: a header (magic, version, source size, source modification time, CRC32C of the source content, bar count,
+ * the id of the zone the bar times were resolved in) followed by the {@link BarSeries} columns: epoch seconds, high
+ * and low unscaled values, high and low scales. The cache is used when the source size, content hash and zone match;
+ * the modification time is recorded but not trusted, as an export can rewrite a file within the timestamp resolution.
+ * Hashing is a sequential read, far cheaper than parsing. Any mismatch re-parses the text and rewrites the cache.
+ */
+final class BarSeriesCache {
+
+    private static final int magic = 0x46445042;
+    private static final int version = 2;
+    private static final int headerSize = 4 + 4 + 8 + 8 + 8 + 4 + 2;
+    private static final int barBytes = 8 + 8 + 8 + 1 + 1;
+    static final String directoryName = ".fractals";
+    static final boolean enabled = Boolean.parseBoolean(System.getProperty("barsCache", "false"));
+
+    private BarSeriesCache() {
+    }
+
+    /**
+     * The bars of {@code file} newest first, from the cache when it is valid.
+     */
+    static List<HighLow> highLows(File file) throws IOException {
+        return enabled ? load(file).toHighLows() : BarParser.parse(file).toHighLows();
+    }
+
+    static BarSeries load(File file) throws IOException {
+        return load(file, FractalsDotProduct.dateTimeFormatter.getZone());
+    }
+
+    static BarSeries load(File file, ZoneId zone) throws IOException {
+        Path source = file.toPath();
+        Path cache = cacheFile(source);
+        long size = Files.size(source);
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        if (Files.exists(cache)) {
+            BarSeries cached = read(cache, source, size, zone);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        BarSeries barSeries = BarParser.parse(file, zone);
+        try {
+            write(cache, barSeries, size, modified, hash(source), zone);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.printf("Cannot write %s: %s%n", cache, e.getMessage());
+        }
+        return barSeries;
+    }
+
+    static Path cacheFile(Path source) {
+        return source.toAbsolutePath().resolveSibling(directoryName).resolve(source.getFileName() + ".bars");
+    }
+
+    private static BarSeries read(Path cache, Path source, long size, ZoneId zone) throws IOException {
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            if (channel.read(header, 0) != headerSize) {
+                return null;
+            }
+            header.flip();
+            if (header.getInt() != magic || header.getInt() != version || header.getLong() != size) {
+                return null;
+            }
+            header.getLong();
+            long cachedHash = header.getLong();
+            int count = header.getInt();
+            byte[] zoneId = zone.getId().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer cachedZoneId = ByteBuffer.allocate(Short.toUnsignedInt(header.getShort()));
+            int columnsOffset = headerSize + cachedZoneId.capacity();
+            channel.read(cachedZoneId, headerSize);
+            if (!Arrays.equals(cachedZoneId.array(), zoneId)
+                    || channel.size() != columnsOffset + (long) count * barBytes || cachedHash != hash(source)) {
+                return null;
+            }
+            MappedByteBuffer columns = channel.map(FileChannel.MapMode.READ_ONLY, columnsOffset, (long) count * barBytes);
+            long[] epochSeconds = new long[count];
+            long[] highUnscaled = new long[count];
+            long[] lowUnscaled = new long[count];
+            byte[] highScales = new byte[count];
+            byte[] lowScales = new byte[count];
+            columns.asLongBuffer().get(epochSeconds).get(highUnscaled).get(lowUnscaled);
+            columns.position(count * 24);
+            columns.get(highScales).get(lowScales);
+            return new BarSeries(epochSeconds, highUnscaled, highScales, lowUnscaled, lowScales);
+        }
+    }
+
+    private static void write(Path cache, BarSeries barSeries, long size, long modified, long hash, ZoneId zone) throws IOException {
+        Files.createDirectories(cache.getParent());
+        int count = barSeries.size();
+        byte[] zoneId = zone.getId().getBytes(StandardCharsets.UTF_8);
+        int columnsOffset = headerSize + zoneId.length;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(columnsOffset + (long) count * barBytes))
+                .putInt(magic)
+                .putInt(version)
+                .putLong(size)
+                .putLong(modified)
+                .putLong(hash)
+                .putInt(count)
+                .putShort((short) zoneId.length)
+                .put(zoneId);
+        buffer.asLongBuffer().put(barSeries.epochSeconds).put(barSeries.highUnscaled).put(barSeries.lowUnscaled);
+        buffer.position(columnsOffset + count * 24);
+        buffer.put(barSeries.highScales).put(barSeries.lowScales).flip();
+        Path temporary = Files.createTempFile(cache.getParent(), cache.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static long hash(Path source) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] chunk = new byte[1 << 16];
+        try (InputStream input = Files.newInputStream(source)) {
+            for (int read = input.read(chunk); read >= 0; read = input.read(chunk)) {
+                crc.update(chunk, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,50 @@
+package org.forkbird;
+
+/**
+ * Scores one base pattern of {@link PatternVectors} against all patterns at once.
+ * <p>
+ * {@code cosines[t]} receives the cosine between {@code base} and pattern {@code t}, computed with the same operation
+ * order as {@link PatternVectors#cosineValue}, so every kernel returns bit-identical values.
+ */
+interface CosineKernel {
+
+    String vectorModule = "jdk.incubator.vector";
+
+    void cosines(PatternVectors vectors, int base, double[] cosines);
+
+    default double[] cosines(PatternVectors vectors, int base) {
+        double[] cosines = new double[vectors.count()];
+        cosines(vectors, base, cosines);
+        return cosines;
+    }
+
+    /**
+     * The kernel chosen with {@code -Dkernel=scalar|vector}. The vector kernel is the default when the
+     * {@code jdk.incubator.vector} module is present ({@code --add-modules jdk.incubator.vector}), the scalar one
+     * otherwise.
+     */
+    static CosineKernel selected() {
+        return Selected.kernel;
+    }
+
+    static CosineKernel of(String name) {
+        return switch (name) {
+            case "scalar" -> new ScalarCosineKernel();
+            case "vector" -> {
+                if (ModuleLayer.boot().findModule(vectorModule).isEmpty()) {
+                    throw new IllegalStateException("kernel=vector requires --add-modules %s".formatted(vectorModule));
+                }
+                yield new VectorCosineKernel();
+            }
+            default -> throw new IllegalArgumentException("Unknown kernel: %s".formatted(name));
+        };
+    }
+
+    final class Selected {
+        private static final CosineKernel kernel = of(System.getProperty("kernel",
+                ModuleLayer.boot().findModule(vectorModule).isPresent() ? "vector" : "scalar"));
+
+        private Selected() {
+        }
+    }
+}
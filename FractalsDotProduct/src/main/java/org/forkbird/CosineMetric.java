@@ -0,0 +1,42 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+
+import java.math.BigDecimal;
+
+/**
+ * The cosine of {@link FractalsPattern#cosine}, scored for all targets by the selected {@link CosineKernel}.
+ */
+final class CosineMetric implements SimilarityMetric {
+
+    private final PatternVectors vectors;
+
+    CosineMetric(PatternVectors vectors) {
+        this.vectors = vectors;
+    }
+
+    @Override
+    public double upperBound(int base, int target) {
+        return vectors.cosineValue(base, target);
+    }
+
+    @Override
+    public void upperBounds(int base, double[] bounds) {
+        CosineKernel.selected().cosines(vectors, base, bounds);
+    }
+
+    @Override
+    public double value(int base, int target, double bound, double minValue) {
+        return bound;
+    }
+
+    @Override
+    public BigDecimal reported(int base, int target, double value) {
+        return vectors.cosine(base, target, value);
+    }
+
+    @Override
+    public int count() {
+        return vectors.count();
+    }
+}
@@ -0,0 +1,256 @@
+package org.forkbird;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Runs the files of a directory side by side. Files are read on virtual threads, so a slow disk does not hold a
+ * compute thread, and all CPU work runs on one bounded {@link ForkJoinPool} of {@code -Dthreads} workers (default: the
+ * number of cores). The parallel streams inside the pipeline fork into the pool they are called from, so the files
+ * and the work inside every file share the same workers instead of oversubscribing the common pool.
+ * <p>
+ * Every file writes its report into its own buffer; the buffers are printed in the order of the files, so the output
+ * does not depend on which file finishes first. A buffer that outgrows {@code -DreportBufferBytes} (16 MiB by default)
+ * moves to a temporary file, so the report of all pairs takes no more heap than its results. The temporary files are
+ * deleted once printed, or when a file fails. The stages of every file are collected in its own {@link StageMetrics},
+ * whose summary goes to {@code System.err} after each pattern size.
+ */
+final class DirectoryScheduler implements AutoCloseable {
+
+    static final int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    static final int reportBufferBytes = Integer.getInteger("reportBufferBytes", 16 << 20);
+
+    private final ExecutorService loader = Executors.newVirtualThreadPerTaskExecutor();
+    private final ForkJoinPool pool;
+    private final Map<File, StageMetrics> metrics = new ConcurrentHashMap<>();
+    private final int reportLimit;
+    private final Path reportDir;
+
+    DirectoryScheduler(int threads) {
+        this(threads, reportBufferBytes, Path.of(System.getProperty("java.io.tmpdir")));
+    }
+
+    DirectoryScheduler(int threads, int reportLimit, Path reportDir) {
+        this.pool = new ForkJoinPool(threads);
+        this.reportLimit = reportLimit;
+        this.reportDir = reportDir;
+    }
+
+    /**
+     * Starts reading every file, through its {@link ResultCache} when it is turned on, and building its
+     * {@link PatternSizeSweep}; the map keeps the order of {@code files}. With {@link Resampler#timeframes}, every file
+     * is parsed once into a {@link BarSeries}: its {@link ResultCache} falls back to these bars instead of parsing the
+     * file again, and its timeframes follow it, resampled from the same bars. The timeframes are not cached.
+     */
+    Map<File, CompletableFuture<PatternSizeSweep>> load(List<File> files, int minPatternSize, int maxPatternSize, BigDecimal cosineMinValue, BigDecimal minLengthRatio, boolean calculateAll) {
+        Map<File, CompletableFuture<PatternSizeSweep>> sweeps = new LinkedHashMap<>();
+        for (File file : files) {
+            if (Resampler.timeframes.isEmpty()) {
+                sweeps.put(file, ResultCache.enabled
+                        ? read(file, () -> ResultCache.open(file))
+                        .thenApplyAsync(cache -> StageMetrics.within(metrics(file),
+                                () -> PatternSizeSweep.of(cache, minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll)), pool)
+                        : read(file, () -> FractalsDotProduct.load(file))
+                        .thenApplyAsync(highLows -> StageMetrics.within(metrics(file),
+                                () -> PatternSizeSweep.of(highLows, minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll)), pool));
+            } else {
+                CompletableFuture<BarSeries> bars = read(file, () -> StageMetrics.measure("load", 0, file.length(),
+                        () -> BarSeriesCache.enabled ? BarSeriesCache.load(file) : BarParser.parse(file), BarSeries::size));
+                sweeps.put(file, ResultCache.enabled
+                        ? bars.thenCompose(series -> read(file, () -> ResultCache.open(file, series::toHighLows)))
+                        .thenApplyAsync(cache -> StageMetrics.within(metrics(file),
+                                () -> PatternSizeSweep.of(cache, minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll)), pool)
+                        : bars.thenApplyAsync(series -> StageMetrics.within(metrics(file),
+                        () -> PatternSizeSweep.of(series.toHighLows(), minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll)), pool));
+                CompletableFuture<Map<Resampler.Timeframe, BarSeries>> resampled = bars
+                        .thenApplyAsync(series -> StageMetrics.within(metrics(file), () -> StageMetrics.measure("resample", 0, series.size(),
+                                () -> resample(file, series), timeframes -> timeframes.values().stream().mapToLong(BarSeries::size).sum())), pool);
+                for (Resampler.Timeframe timeframe : Resampler.timeframes) {
+                    File timeframeFile = Resampler.file(file, timeframe);
+                    sweeps.put(timeframeFile, resampled.thenApplyAsync(timeframes -> StageMetrics.within(metrics(timeframeFile),
+                            () -> PatternSizeSweep.of(timeframes.get(timeframe).toHighLows(), minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll)), pool));
+                }
+            }
+        }
+        return sweeps;
+    }
+
+    private static Map<Resampler.Timeframe, BarSeries> resample(File file, BarSeries series) {
+        try {
+            return Resampler.resample(series, Resampler.timeframes);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("%s: %s".formatted(file, e.getMessage()), e);
+        }
+    }
+
+    private <T> CompletableFuture<T> read(File file, StageMetrics.StageBody<T, IOException> body) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return StageMetrics.within(metrics(file), body);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, loader);
+    }
+
+    private StageMetrics metrics(File file) {
+        return metrics.computeIfAbsent(file, f -> new StageMetrics(f.getName()));
+    }
+
+    private record FileReport(ReportBuffer output, boolean fileWritten) {
+    }
+
+    /**
+     * The report of one file: in memory up to {@code limit} bytes, then in a temporary file in {@code dir}. Closing it
+     * deletes the temporary file, whether or not the report was transferred.
+     */
+    static final class ReportBuffer extends OutputStream {
+
+        private final int limit;
+        private final Path dir;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path file;
+        private OutputStream fileOutput;
+
+        ReportBuffer(int limit, Path dir) {
+            this.limit = limit;
+            this.dir = dir;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (memory != null && memory.size() + length > limit) {
+                file = Files.createTempFile(dir, "report", ".txt");
+                fileOutput = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+                memory.writeTo(fileOutput);
+                memory = null;
+            }
+            if (memory != null) {
+                memory.write(bytes, offset, length);
+            } else {
+                fileOutput.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (fileOutput != null) {
+                    fileOutput.close();
+                }
+            } finally {
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        /**
+         * Copies the report to {@code out}.
+         */
+        void transferTo(OutputStream out) throws IOException {
+            if (memory != null) {
+                memory.writeTo(out);
+                return;
+            }
+            fileOutput.flush();
+            Files.copy(file, out);
+        }
+    }
+
+    /**
+     * Processes one pattern size of every file as soon as the file is loaded and prints the reports in file order.
+     *
+     * @return whether a result file was written for any of the files
+     */
+    boolean process(Map<File, CompletableFuture<PatternSizeSweep>> sweeps, int patternSize, int minCosineResults, boolean calculateAll, PrintStream out) {
+        Queue<ReportBuffer> buffers = new ConcurrentLinkedQueue<>();
+        List<CompletableFuture<FileReport>> reports = sweeps.entrySet().stream()
+                .map(e -> e.getValue().thenApplyAsync(sweep -> {
+                    ReportBuffer buffer = new ReportBuffer(reportLimit, reportDir);
+                    buffers.add(buffer);
+                    PrintStream fileOut = new PrintStream(buffer);
+                    try {
+                        boolean fileWritten = StageMetrics.within(metrics(e.getKey()),
+                                () -> FractalsDotProduct.processOneFile(e.getKey(), sweep, patternSize, minCosineResults, calculateAll, fileOut));
+                        fileOut.flush();
+                        if (fileOut.checkError()) {
+                            throw new IOException("Cannot buffer the report of " + e.getKey());
+                        }
+                        return new FileReport(buffer, fileWritten);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }, pool))
+                .toList();
+        try {
+            boolean fileWritten = false;
+            for (CompletableFuture<FileReport> report : reports) {
+                report.join().output.transferTo(out);
+                fileWritten |= report.join().fileWritten;
+            }
+            out.flush();
+            return fileWritten;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            CompletableFuture.allOf(reports.toArray(CompletableFuture[]::new)).handle((done, failure) -> done).join();
+            close(buffers);
+        }
+    }
+
+    private static void close(Queue<ReportBuffer> buffers) {
+        UncheckedIOException failure = null;
+        for (ReportBuffer buffer : buffers) {
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new UncheckedIOException(e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs {@code task} on the pool, so that the parallel streams inside it share the workers of the files.
+     */
+    <T> T compute(Supplier<T> task) {
+        return pool.submit(task::get).join();
+    }
+
+    @Override
+    public void close() {
+        loader.close();
+        pool.close();
+    }
+}
@@ -0,0 +1,109 @@
+package org.forkbird;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Dynamic time warping distance of the changes, as the similarity {@code 1 - dtw(a, b) / (|a| + |b|)}: change
+ * {@code i} of one pattern may be matched with changes {@code i - band} to {@code i + band} of the other, so fractals
+ * that come one step early or late still line up. The warping path includes the diagonal, so the distance is at most
+ * the Euclidean one and the similarity stays between 0 and 1.
+ * <p>
+ * The upper and lower envelope of every pattern (the maximum and minimum of the changes within the band) are built
+ * once. LB_Keogh, the distance of one pattern to the envelope of the other, is a lower bound of the DTW distance in
+ * {@code O(size)}; the larger of the two directions gives the upper bound of the similarity. The full distance is a
+ * banded dynamic program that stops when a whole row already exceeds what the minimal value allows.
+ */
+final class DtwMetric implements SimilarityMetric {
+
+    static final int band = Integer.getInteger("dtwBand", 1);
+
+    private final PatternVectors vectors;
+    private final int size;
+    private final int window;
+    private final double[] upper;
+    private final double[] lower;
+
+    DtwMetric(PatternVectors vectors, int band) {
+        if (band < 0) {
+            throw new IllegalArgumentException("Invalid DTW band: %d".formatted(band));
+        }
+        this.vectors = vectors;
+        this.size = vectors.size();
+        this.window = band;
+        this.upper = new double[vectors.count() * size];
+        this.lower = new double[vectors.count() * size];
+        for (int p = 0; p < vectors.count(); p++) {
+            for (int i = 0; i < size; i++) {
+                double max = Double.NEGATIVE_INFINITY;
+                double min = Double.POSITIVE_INFINITY;
+                for (int j = Math.max(0, i - band); j <= Math.min(size - 1, i + band); j++) {
+                    max = Math.max(max, vectors.change(p, j));
+                    min = Math.min(min, vectors.change(p, j));
+                }
+                upper[p * size + i] = max;
+                lower[p * size + i] = min;
+            }
+        }
+    }
+
+    @Override
+    public double upperBound(int base, int target) {
+        double lowerBound = Math.max(keogh(base, target), keogh(target, base));
+        return SimilarityMetric.fromDistance(Math.sqrt(lowerBound), vectors.norm(base) + vectors.norm(target));
+    }
+
+    /**
+     * Squared distance of the changes of {@code pattern} to the envelope of {@code envelope}.
+     */
+    private double keogh(int pattern, int envelope) {
+        double sum = 0;
+        int offset = envelope * size;
+        for (int i = 0; i < size; i++) {
+            double change = vectors.change(pattern, i);
+            if (change > upper[offset + i]) {
+                sum += (change - upper[offset + i]) * (change - upper[offset + i]);
+            } else if (change < lower[offset + i]) {
+                sum += (lower[offset + i] - change) * (lower[offset + i] - change);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public double value(int base, int target, double bound, double minValue) {
+        double normSum = vectors.norm(base) + vectors.norm(target);
+        double maxDistanceSquare = SimilarityMetric.maxDistanceSquare(minValue, normSum);
+        double[] previous = new double[size];
+        double[] current = new double[size];
+        for (int i = 0; i < size; i++) {
+            Arrays.fill(current, Double.POSITIVE_INFINITY);
+            double rowMin = Double.POSITIVE_INFINITY;
+            for (int j = Math.max(0, i - window); j <= Math.min(size - 1, i + window); j++) {
+                double difference = vectors.change(base, i) - vectors.change(target, j);
+                double best = i == 0 && j == 0 ? 0 : Math.min(
+                        i > 0 ? Math.min(previous[j], j > 0 ? previous[j - 1] : Double.POSITIVE_INFINITY) : Double.POSITIVE_INFINITY,
+                        j > 0 ? current[j - 1] : Double.POSITIVE_INFINITY);
+                current[j] = best + difference * difference;
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxDistanceSquare) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            double[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return SimilarityMetric.fromDistance(Math.sqrt(previous[size - 1]), normSum);
+    }
+
+    @Override
+    public BigDecimal reported(int base, int target, double value) {
+        return PatternVectors.truncated(value);
+    }
+
+    @Override
+    public int count() {
+        return vectors.count();
+    }
+}
@@ -0,0 +1,49 @@
+package org.forkbird;
+
+import java.math.BigDecimal;
+
+/**
+ * Euclidean distance of the changes, as the similarity {@code 1 - |a - b| / (|a| + |b|)}. The norms give the bound
+ * {@code 1 - ||a| - |b|| / (|a| + |b|)}, so patterns of very different length are pruned without touching their
+ * changes; the distance stops as soon as it exceeds what the minimal value allows.
+ */
+final class EuclideanMetric implements SimilarityMetric {
+
+    private final PatternVectors vectors;
+
+    EuclideanMetric(PatternVectors vectors) {
+        this.vectors = vectors;
+    }
+
+    @Override
+    public double upperBound(int base, int target) {
+        double baseNorm = vectors.norm(base);
+        double norm = vectors.norm(target);
+        return SimilarityMetric.fromDistance(Math.abs(baseNorm - norm), baseNorm + norm);
+    }
+
+    @Override
+    public double value(int base, int target, double bound, double minValue) {
+        double normSum = vectors.norm(base) + vectors.norm(target);
+        double maxDistanceSquare = SimilarityMetric.maxDistanceSquare(minValue, normSum);
+        double distanceSquare = 0;
+        for (int j = 0; j < vectors.size(); j++) {
+            double difference = vectors.change(base, j) - vectors.change(target, j);
+            distanceSquare += difference * difference;
+            if (distanceSquare > maxDistanceSquare) {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+        return SimilarityMetric.fromDistance(Math.sqrt(distanceSquare), normSum);
+    }
+
+    @Override
+    public BigDecimal reported(int base, int target, double value) {
+        return PatternVectors.truncated(value);
+    }
+
+    @Override
+    public int count() {
+        return vectors.count();
+    }
+}
@@ -0,0 +1,187 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bill Williams fractals of any odd width, found in one pass as the bars arrive, oldest first. The middle bar of a
+ * window is an up fractal when its high is above the highs of the {@code width / 2} bars on both sides, otherwise a
+ * down fractal when its low is below their lows, exactly like the 5-bar rule of {@link FractalsDotProduct#fractals}.
+ * <p>
+ * Instead of comparing the middle bar with every other bar of its window, the maximum high and minimum low of the
+ * last {@code width / 2} bars are kept in monotonic deques: a bar is checked against the bars before it when it
+ * arrives and against the bars after it {@code width / 2} bars later, so every bar costs amortized O(1) whatever the
+ * width. The last {@code width} bars are kept in ring buffers of {@code double} prices. The conversion to double is
+ * correctly rounded and therefore keeps the order of the prices, so only prices with equal doubles are compared again
+ * as {@link BigDecimal}s, and the result is exactly that of comparing the decimal prices.
+ */
+final class FractalDetector {
+
+    private final int width;
+    private final int half;
+    private final HighLow[] bars;
+    private final double[] highs;
+    private final double[] lows;
+    private final boolean[] aboveBefore;
+    private final boolean[] belowBefore;
+    private final Deque maxHighs;
+    private final Deque minLows;
+    private int next;
+    private long count;
+
+    FractalDetector(int width) {
+        if (width < 3 || width % 2 == 0) {
+            throw new IllegalArgumentException("Fractal width must be odd and at least 3: %d".formatted(width));
+        }
+        this.width = width;
+        this.half = width / 2;
+        this.bars = new HighLow[width];
+        this.highs = new double[width];
+        this.lows = new double[width];
+        this.aboveBefore = new boolean[width];
+        this.belowBefore = new boolean[width];
+        this.maxHighs = new Deque(half + 1);
+        this.minLows = new Deque(half + 1);
+    }
+
+    /**
+     * The fractals of {@code highLows}, both newest first, as {@link FractalsDotProduct#fractals} returns them.
+     */
+    static List<Fractal> fractals(List<HighLow> highLows, int width) {
+        FractalDetector detector = new FractalDetector(width);
+        List<Fractal> fractals = new ArrayList<>();
+        for (int i = highLows.size() - 1; i >= 0; i--) {
+            Fractal fractal = detector.add(highLows.get(i));
+            if (fractal != null) {
+                fractals.add(fractal);
+            }
+        }
+        Collections.reverse(fractals);
+        return fractals;
+    }
+
+    /**
+     * Adds the next bar, which must be newer than the previous ones.
+     *
+     * @return the fractal confirmed by this bar, at the bar {@code width / 2} bars before it, or {@code null}
+     */
+    Fractal add(HighLow highLow) {
+        int slot = next;
+        next = next + 1 == width ? 0 : next + 1;
+        bars[slot] = highLow;
+        highs[slot] = highLow.high().doubleValue();
+        lows[slot] = highLow.low().doubleValue();
+
+        // the deques hold the previous half bars here
+        boolean complete = count++ >= half;
+        aboveBefore[slot] = complete && compareHighs(slot, maxHighs.first()) > 0;
+        belowBefore[slot] = complete && compareLows(slot, minLows.first()) < 0;
+        while (!maxHighs.isEmpty() && compareHighs(maxHighs.last(), slot) <= 0) {
+            maxHighs.removeLast();
+        }
+        maxHighs.addLast(slot);
+        while (!minLows.isEmpty() && compareLows(minLows.last(), slot) >= 0) {
+            minLows.removeLast();
+        }
+        minLows.addLast(slot);
+        int middle = slot >= half ? slot - half : slot - half + width;
+        if (maxHighs.first() == middle) {
+            maxHighs.removeFirst();
+        }
+        if (minLows.first() == middle) {
+            minLows.removeFirst();
+        }
+
+        // and now the half bars after the middle one
+        if (count <= 2L * half) {
+            return null;
+        }
+        if (aboveBefore[middle] && compareHighs(middle, maxHighs.first()) > 0) {
+            return new Fractal(bars[middle].dateTime(), bars[middle].high(), null);
+        } else if (belowBefore[middle] && compareLows(middle, minLows.first()) < 0) {
+            return new Fractal(bars[middle].dateTime(), bars[middle].low(), null);
+        }
+        return null;
+    }
+
+    /**
+     * A detector in the state of this one, which goes on independently of it.
+     */
+    FractalDetector copy() {
+        FractalDetector copy = new FractalDetector(width);
+        System.arraycopy(bars, 0, copy.bars, 0, width);
+        System.arraycopy(highs, 0, copy.highs, 0, width);
+        System.arraycopy(lows, 0, copy.lows, 0, width);
+        System.arraycopy(aboveBefore, 0, copy.aboveBefore, 0, width);
+        System.arraycopy(belowBefore, 0, copy.belowBefore, 0, width);
+        maxHighs.copyTo(copy.maxHighs);
+        minLows.copyTo(copy.minLows);
+        copy.next = next;
+        copy.count = count;
+        return copy;
+    }
+
+    private int compareHighs(int a, int b) {
+        int compared = Double.compare(highs[a], highs[b]);
+        return compared != 0 ? compared : bars[a].high().compareTo(bars[b].high());
+    }
+
+    private int compareLows(int a, int b) {
+        int compared = Double.compare(lows[a], lows[b]);
+        return compared != 0 ? compared : bars[a].low().compareTo(bars[b].low());
+    }
+
+    /**
+     * Ring buffer slots of the bars, in a fixed-size circular buffer.
+     */
+    private static final class Deque {
+
+        private final int[] elements;
+        private int head;
+        private int size;
+
+        Deque(int capacity) {
+            this.elements = new int[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int first() {
+            return elements[head];
+        }
+
+        int last() {
+            return elements[wrap(head + size - 1)];
+        }
+
+        void addLast(int slot) {
+            elements[wrap(head + size++)] = slot;
+        }
+
+        void removeFirst() {
+            head = wrap(head + 1);
+            size--;
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        void copyTo(Deque copy) {
+            System.arraycopy(elements, 0, copy.elements, 0, elements.length);
+            copy.head = head;
+            copy.size = size;
+        }
+
+        private int wrap(int index) {
+            return index >= elements.length ? index - elements.length : index;
+        }
+    }
+}
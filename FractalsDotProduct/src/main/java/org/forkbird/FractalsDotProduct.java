@@ -1,17 +1,19 @@
 package org.forkbird;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
-import java.nio.file.Files;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -23,10 +25,12 @@ import static java.util.stream.Collectors.*;
 public class FractalsDotProduct {
 
     static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss").withZone(ZoneId.systemDefault());
-    private static final int fractalSize = 5;
-    private static final int bigDecimalScale = 4;
-    private static final BigDecimal minAfterCosine = new BigDecimal("0.9");
+    static final int fractalSize = Integer.getInteger("fractalSize", 5);
+    static final int bigDecimalScale = 4;
+    static final BigDecimal minAfterCosine = new BigDecimal("0.9");
     public static final RoundingMode roundingMode = RoundingMode.DOWN;
+    static final int topK = Integer.getInteger("topK", 0);
+    static final int topKPerBase = Integer.getInteger("topKPerBase", 0);
 
     public static void main(String[] args) throws IOException {
         if (args.length != 8) {
@@ -40,195 +44,355 @@ public class FractalsDotProduct {
         int minCosineResults = Integer.parseInt(args[5]);
         boolean calculateAll = Boolean.parseBoolean(args[6]);
         boolean stopWhenFound = Boolean.parseBoolean(args[7]);
+        SimilarityMetric.checkSelected();
 
-        for (int i = maxPatternSize; i >= minPatternSize; i--) {
-            System.out.printf("Processing pattern size: %d%n", i);
-            boolean fileWritten;
-            if (file.isDirectory()) {
-                fileWritten = processFiles(file, i, cosineMinValue, minLengthRatio, minCosineResults, calculateAll);
-            } else {
-                fileWritten = processOneFile(file, i, cosineMinValue, minLengthRatio, minCosineResults, calculateAll);
+        List<File> files = file.isDirectory() ? proFiles(file) : List.of(file);
+        if (AnytimeSearch.budgetMillis > 0) {
+            anytime(files, minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, minCosineResults, calculateAll, stopWhenFound);
+            return;
+        }
+        try (DirectoryScheduler scheduler = new DirectoryScheduler(DirectoryScheduler.threads)) {
+            Map<File, CompletableFuture<PatternSizeSweep>> sweeps = scheduler.load(files, minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll);
+            for (int i = maxPatternSize; i >= minPatternSize; i--) {
+                System.out.printf("Processing pattern size: %d%n", i);
+                boolean fileWritten = scheduler.process(sweeps, i, minCosineResults, calculateAll, System.out);
+                if (fileWritten && stopWhenFound)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Like the regular {@link #main}, but every pattern size is searched by {@link AnytimeSearch} on the scheduler's
+     * pool within what is left of {@code -DbudgetMillis} from the start, loading included; the progress goes to
+     * stderr. Sizes that are not reached before the deadline are skipped.
+     */
+    private static void anytime(List<File> files, int minPatternSize, int maxPatternSize, BigDecimal cosineMinValue, BigDecimal minLengthRatio, int minCosineResults, boolean calculateAll, boolean stopWhenFound) throws IOException {
+        long deadline = System.nanoTime() + AnytimeSearch.budgetMillis * 1_000_000;
+        try (DirectoryScheduler scheduler = new DirectoryScheduler(DirectoryScheduler.threads)) {
+            Map<File, CompletableFuture<PatternSizeSweep>> sweeps = scheduler.load(files, minPatternSize, maxPatternSize, cosineMinValue, minLengthRatio, calculateAll);
+            for (int i = maxPatternSize; i >= minPatternSize; i--) {
+                if (System.nanoTime() - deadline >= 0) {
+                    System.out.printf("Deadline reached before pattern size: %d%n", i);
+                    break;
+                }
+                System.out.printf("Processing pattern size: %d%n", i);
+                List<AnytimeSearch> searches = new ArrayList<>();
+                for (Map.Entry<File, CompletableFuture<PatternSizeSweep>> sweep : sweeps.entrySet()) {
+                    searches.add(AnytimeSearch.of(sweep.getKey(), sweep.getValue().thenApply(PatternSizeSweep::changes), i, cosineMinValue, minLengthRatio, Math.max(1, minCosineResults), calculateAll));
+                }
+                boolean fileWritten = false;
+                for (AnytimeSearch.Snapshot snapshot : scheduler.compute(() -> AnytimeSearch.run(searches, deadline, snapshot -> System.err.println(snapshot.progress())))) {
+                    fileWritten |= report(snapshot, minCosineResults, calculateAll, System.out);
+                }
+                if (fileWritten && stopWhenFound)
+                    break;
             }
-            if (fileWritten && stopWhenFound)
-                break;
         }
     }
 
-    private static boolean processFiles(File file, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, int minCosineResults, boolean calculateAll) {
-        File[] files = file.listFiles(f -> !f.isDirectory() && f.getName().endsWith(".pro"));
+    /**
+     * The report of {@link #processOneFile} for the best results of a possibly incomplete search, with its coverage.
+     */
+    static boolean report(AnytimeSearch.Snapshot snapshot, int minCosineResults, boolean calculateAll, PrintStream out) throws IOException {
+        out.println(snapshot.file());
+        if (snapshot.candidates() < 0) {
+            out.println("Coverage: not loaded before the deadline");
+        } else {
+            out.printf("Coverage: %d/%d (%.2f%%)%n", snapshot.scored(), snapshot.candidates(), snapshot.coverage() * 100);
+        }
+        List<CosineResult> cosineResults = snapshot.results();
+        if (!cosineResults.isEmpty() && (calculateAll || cosineResults.size() >= minCosineResults)) {
+            cosineResults.forEach(e -> out.print(describe(e)));
+
+            snapshot.forecastSuccess().ifPresent(forecastSuccess -> out.printf("Forecast success: %s%n%n".formatted(forecastSuccess)));
+
+            out.println(ResultWriter.write(snapshot.file(), cosineResults.getFirst().base.fractals.getLast().dateTime.toLocalDate().toString(), snapshot.patternSize(), cosineResults, cosineResults.size()));
+            return true;
+        } else {
+            out.printf("CosineResults < %d%n", minCosineResults);
+            return false;
+        }
+    }
+
+    private static List<File> proFiles(File directory) {
+        File[] files = directory.listFiles(f -> !f.isDirectory() && f.getName().endsWith(".pro"));
         return Arrays.stream(files != null ? files : new File[]{})
-                .map(f -> {
-                    try {
-                        return processOneFile(f, patternSize, cosineMinValue, minLengthRation, minCosineResults, calculateAll);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                })
-                .toList().stream()
-                .filter(b -> b)
-                .findFirst()
-                .orElse(false);
+                .sorted(comparing(File::getName))
+                .toList();
+    }
+
+    static boolean processOneFile(File file, PatternSizeSweep sweep, int patternSize, int minCosineResults, boolean calculateAll, PrintStream out) throws IOException {
+        out.println(file);
+        List<CosineResult> cosineResults = sweep.results(patternSize);
+        boolean fileWritten = StageMetrics.measure("report", patternSize, cosineResults.size(),
+                () -> report(file, sweep, patternSize, cosineResults, minCosineResults, calculateAll, out), written -> written ? 1 : 0);
+        StageMetrics.current().ifPresent(metrics -> System.err.println(metrics.drainSummary(patternSize)));
+        return fileWritten;
     }
 
-    private static boolean processOneFile(File file, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, int minCosineResults, boolean calculateAll) throws IOException {
-        System.out.println(file);
-        List<CosineResult> cosineResults = processFile(file, patternSize, cosineMinValue, minLengthRation, calculateAll);
+    private static boolean report(File file, PatternSizeSweep sweep, int patternSize, List<CosineResult> cosineResults, int minCosineResults, boolean calculateAll, PrintStream out) throws IOException {
         if (calculateAll || cosineResults.size() >= minCosineResults) {
             cosineResults
                     .stream().limit(calculateAll ? Long.MAX_VALUE : minCosineResults)
-                    .forEach(e -> System.out.printf("Cosine: %s%nLengthRatio: %s%nBase: %s%nTarget: %s%nAfter base: %s%nAfter target: %s%nAfter cosine: %s%n%n", e.cosine, e.lengthRatio, e.base, e.target, e.afterBase, e.afterTarget, e.afterCosine));
+                    .forEach(e -> out.print(describe(e)));
 
-            Map<Boolean, Long> collect = cosineResults.stream()
-                    .filter(cr -> cr.afterCosine != null)
-                    .collect(partitioningBy(cr -> cr.afterCosine.compareTo(minAfterCosine) > 0, counting()));
-            if (collect.get(false) != null && collect.get(false) > 0) {
-                System.out.printf("Forecast success: %s%n%n".formatted(BigDecimal.valueOf(collect.get(true)).divide(BigDecimal.valueOf(collect.get(false)), bigDecimalScale, roundingMode)));
-            }
+            forecastSuccess(cosineResults).ifPresent(forecastSuccess -> out.printf("Forecast success: %s%n%n".formatted(forecastSuccess)));
 
-            writeToFile(file, cosineResults.getFirst().base.fractals.getLast().dateTime.toLocalDate().toString(), patternSize, prepareCsv(cosineResults, minCosineResults, calculateAll));
+            out.println(sweep.resultFile(file, cosineResults.getFirst().base.fractals.getLast().dateTime.toLocalDate().toString(), patternSize, cosineResults, calculateAll ? Long.MAX_VALUE : minCosineResults));
             return true;
         } else {
-            System.out.printf("CosineResults < %d%n", minCosineResults);
+            out.printf("CosineResults < %d%n", minCosineResults);
             return false;
         }
     }
 
-    private static void writeToFile(File file, String date, int patternSize, List<String> lines) throws IOException {
-        File output = File.createTempFile("%s_%s_%s_".formatted(file.getName(), patternSize, date), ".csv", file.getParentFile());
-        System.out.println(output);
-        FileWriter writer = new FileWriter(output);
-        lines.forEach(str -> {
-            try {
-                writer.write("%s\n".formatted(str));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
-        writer.close();
-    }
-
-    private static List<String> prepareCsv(List<CosineResult> cosineResults, int minCosineResults, boolean calculateAll) {
-        return Stream.concat(
-                cosineResults.stream()
-                        .filter(cr -> cr.afterTarget != null)
-                        .limit(calculateAll ? Long.MAX_VALUE : minCosineResults)
-                        .map(CosineResult::sorted)
-                        .flatMap(cr -> IntStream.range(-1, cr.base.fractals.size() * 2 - 1)
-                                .mapToObj(i -> createChart(cr, i))
-                        ),
-                cosineResults.stream()
-                        .filter(cr -> cr.afterTarget != null)
-                        .limit(calculateAll ? Long.MAX_VALUE : minCosineResults)
-                        .map(CosineResult::sorted)
-                        .map(cr -> cr.afterTarget.calculateLinearRegressionA())
-                        .sorted()
-                        .map(BigDecimal::toString)
-        ).toList();
-    }
-
-    private static String createChart(CosineResult cr, int i) {
-        if (i == -1) {
-            return "Cosine base X target:;%s;after_target lrA:;%s%sbase_date;base_value;base_change;target_date;target_value;target_change".formatted(cr.base.cosine(cr.target), cr.afterTarget.calculateLinearRegressionA(), "\n");
-        }
-        List<Fractal> base = cr.base.fractals;
-        List<Fractal> target = cr.target.fractals;
-        int size = base.size();
-        if (i < size) {
-            return base.get(i).dateTime + ";" + base.get(i).value + ";" + base.get(i).change + ";" +
-                    target.get(i).dateTime + ";" + target.get(i).value + ";" + target.get(i).change;
-        } else {
-            FractalsPattern afterBase = cr.afterBase;
-            FractalsPattern afterTarget = cr.afterTarget;
-            if (afterBase != null && afterTarget != null)
-                return afterBase.fractals.get(i - size + 1).dateTime + ";" + afterBase.fractals.get(i - size + 1).value + ";;" +
-                        afterTarget.fractals.get(i - size + 1).dateTime + ";" + afterTarget.fractals.get(i - size + 1).value + ";" + afterTarget.fractals.get(i - size + 1).change;
-            else if (afterTarget != null)
-                return ";;;" + afterTarget.fractals.get(i - size + 1).dateTime + ";" + afterTarget.fractals.get(i - size + 1).value + ";" + afterTarget.fractals.get(i - size + 1).change;
-            else
-                return "";
+    /**
+     * Ratio of the results whose following patterns are similar too ({@code afterCosine} above 0.9) to those whose
+     * following patterns are not; empty when no result has a dissimilar following pattern.
+     */
+    static Optional<BigDecimal> forecastSuccess(List<CosineResult> cosineResults) {
+        Map<Boolean, Long> collect = cosineResults.stream()
+                .filter(cr -> cr.afterCosine != null)
+                .collect(partitioningBy(cr -> cr.afterCosine.compareTo(minAfterCosine) > 0, counting()));
+        if (collect.get(false) != null && collect.get(false) > 0) {
+            return Optional.of(BigDecimal.valueOf(collect.get(true)).divide(BigDecimal.valueOf(collect.get(false)), bigDecimalScale, roundingMode));
         }
+        return Optional.empty();
+    }
+
+    static String describe(CosineResult e) {
+        return "%s: %s%nLengthRatio: %s%nBase: %s%nTarget: %s%nAfter base: %s%nAfter target: %s%nAfter cosine: %s%n%n".formatted(SimilarityMetric.label(), e.cosine, e.lengthRatio, e.base, e.target, e.afterBase, e.afterTarget, e.afterCosine);
     }
 
     static List<CosineResult> processFile(File file, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, Boolean calculateAll) throws IOException {
-        try (Stream<String> lines = Files.lines(file.toPath())) {
-            return process(lines, patternSize, cosineMinValue, minLengthRation, calculateAll);
-        }
+        return process(load(file), patternSize, cosineMinValue, minLengthRation, calculateAll);
+    }
+
+    /**
+     * Reads the bars of a price file through {@link BarSeriesCache}; measured as the {@code load} stage, with the file
+     * size in bytes as its input.
+     */
+    static List<HighLow> load(File file) throws IOException {
+        return StageMetrics.measure("load", 0, file.length(), () -> BarSeriesCache.highLows(file), List::size);
     }
 
     static List<CosineResult> process(Stream<String> lines, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, Boolean calculateAll) {
-        return ((Function<Stream<String>, List<HighLow>>) FractalsDotProduct::toHighLows)
-                .andThen(FractalsDotProduct::fractals)
-                .andThen(FractalsDotProduct::valueDiff)
-                .andThen(fractals -> fractalsPatterns(fractals, patternSize))
+        return process(toHighLows(lines), patternSize, cosineMinValue, minLengthRation, calculateAll);
+    }
+
+    static List<CosineResult> process(List<HighLow> highLows, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, Boolean calculateAll) {
+        return ((Function<List<HighLow>, List<Fractal>>) hl -> StageMetrics.measure("fractals", patternSize, hl.size(), () -> fractals(hl), List::size))
+                .andThen(fractals -> StageMetrics.measure("valueDiff", patternSize, fractals.size(), () -> valueDiff(fractals), List::size))
+                .andThen(changes -> score(changes, patternSize, cosineMinValue, minLengthRation, calculateAll))
+                .apply(highLows);
+    }
+
+    /**
+     * The part of {@link #process} after the change series is known; shared by all sizes of a {@link PatternSizeSweep}.
+     */
+    static List<CosineResult> score(List<Fractal> changes, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, Boolean calculateAll) {
+        return ((Function<List<Fractal>, List<FractalsPattern>>) fractals -> StageMetrics.measure("patterns", patternSize, fractals.size(), () -> fractalsPatterns(fractals, patternSize), List::size))
+                .andThen(fractalsPatterns -> StageMetrics.measure("index", patternSize, fractalsPatterns.size(), () -> IndexedPatterns.of(fractalsPatterns), ip -> ip.patterns().size()))
                 .andThen(fractalsPatterns -> calculateAll
-                        ? FractalsDotProduct.calculateAllCosines(fractalsPatterns, cosineMinValue, minLengthRation)
-                        : FractalsDotProduct.calculateCosines(fractalsPatterns, cosineMinValue, minLengthRation))
-                .apply(lines);
+                        ? FractalsDotProduct.calculateAllCosines(fractalsPatterns, cosineMinValue, minLengthRation, topK, topKPerBase)
+                        : StageMetrics.measure("score", patternSize, fractalsPatterns.patterns().size(),
+                        () -> FractalsDotProduct.calculateCosines(fractalsPatterns, cosineMinValue, minLengthRation), List::size))
+                .apply(changes);
     }
 
     static List<CosineResult> calculateAllCosines(List<FractalsPattern> fractalsPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
-        return fractalsPatterns.stream()
-                .parallel()
-                .flatMap(base -> cosineResultStream(fractalsPatterns, base))
-                .filter(cr -> cr.cosine.compareTo(cosineMinValue) >= 0)
-                .filter(cr -> cr.lengthRatio.compareTo(minLengthRation) >= 0)
-                .map(cr -> new CosineResult(
-                        cr.base,
-                        cr.target,
-                        cr.cosine,
-                        cr.lengthRatio,
-                        findFollowingFractalPattern(fractalsPatterns, cr.base),
-                        findFollowingFractalPattern(fractalsPatterns, cr.target),
-                        null))
-                .map(cr -> new CosineResult(
-                        cr.base,
-                        cr.target,
-                        cr.cosine,
-                        cr.lengthRatio,
-                        cr.afterBase,
-                        cr.afterTarget,
-                        cr.afterBase != null ? cr.afterBase.cosine(cr.afterTarget) : null
-                ))
-                .sorted(comparing(o -> o.cosine, reverseOrder()))
-                .toList();
+        return calculateAllCosines(IndexedPatterns.of(fractalsPatterns), cosineMinValue, minLengthRation);
     }
 
-    private static FractalsPattern findFollowingFractalPattern(List<FractalsPattern> fractalsPatterns, FractalsPattern fractalsPattern) {
-        return fractalsPatterns.stream()
-                .parallel()
-                .filter(fractalsPattern::isBefore)
-                .findFirst().orElse(null);
+    static List<CosineResult> calculateAllCosines(IndexedPatterns indexedPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
+        int count = indexedPatterns.vectors().count();
+        SimilarityMetric metric = SimilarityMetric.selected(indexedPatterns.vectors());
+        BoundCounts boundCounts = new BoundCounts();
+        List<ScoredPair> scoredPairs = StageMetrics.measure("score", indexedPatterns.vectors().size(), (long) count * count,
+                () -> IntStream.range(0, count)
+                        .parallel()
+                        .boxed()
+                        .flatMap(base -> scoredPairs(indexedPatterns, metric, base, cosineMinValue, minLengthRation, boundCounts))
+                        .sorted(ScoredPair.bestFirst)
+                        .toList(),
+                List::size);
+        boundCounts.record(indexedPatterns.vectors().size());
+        return toCosineResults(indexedPatterns, scoredPairs);
+    }
+
+    /**
+     * Like {@link #calculateAllCosines(IndexedPatterns, BigDecimal, BigDecimal)}, but keeps only the best
+     * {@code topKPerBase} results of every base pattern and the best {@code topK} results overall (0 = no limit).
+     * Results are the same as the first elements of the unbounded list; the following patterns are looked up for the
+     * kept results only. With {@code -DallPairs=tiled}, scored by {@link TiledAllPairs} in bounded memory.
+     */
+    static List<CosineResult> calculateAllCosines(IndexedPatterns indexedPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation, int topK, int topKPerBase) {
+        if (TiledAllPairs.enabled) {
+            return TiledAllPairs.calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRation, topK, topKPerBase);
+        }
+        if (topK <= 0 && topKPerBase <= 0) {
+            return calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRation);
+        }
+        int count = indexedPatterns.vectors().count();
+        SimilarityMetric metric = SimilarityMetric.selected(indexedPatterns.vectors());
+        BoundCounts boundCounts = new BoundCounts();
+        List<ScoredPair> scoredPairs = StageMetrics.measure("score", indexedPatterns.vectors().size(), (long) count * count,
+                () -> IntStream.range(0, count)
+                        .parallel()
+                        .boxed()
+                        .flatMap(base -> topKPerBase > 0
+                                ? scoredPairs(indexedPatterns, metric, base, cosineMinValue, minLengthRation, boundCounts).collect(TopK.collector(topKPerBase)).stream()
+                                : scoredPairs(indexedPatterns, metric, base, cosineMinValue, minLengthRation, boundCounts))
+                        .collect(TopK.collector(topK > 0 ? topK : Integer.MAX_VALUE)),
+                List::size);
+        boundCounts.record(indexedPatterns.vectors().size());
+        return toCosineResults(indexedPatterns, scoredPairs);
+    }
+
+    private static List<CosineResult> toCosineResults(IndexedPatterns indexedPatterns, List<ScoredPair> scoredPairs) {
+        return StageMetrics.measure("following", indexedPatterns.vectors().size(), scoredPairs.size(),
+                () -> scoredPairs.parallelStream()
+                        .map(scoredPair -> toCosineResult(indexedPatterns, scoredPair))
+                        .toList(),
+                List::size);
+    }
+
+    static CosineResult toCosineResult(IndexedPatterns indexedPatterns, ScoredPair scoredPair) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        int afterBase = indexedPatterns.successors()[scoredPair.base];
+        int afterTarget = indexedPatterns.successors()[scoredPair.target];
+        return new CosineResult(
+                vectors.pattern(scoredPair.base),
+                vectors.pattern(scoredPair.target),
+                scoredPair.cosine,
+                scoredPair.lengthRatio,
+                indexedPatterns.following(scoredPair.base),
+                indexedPatterns.following(scoredPair.target),
+                afterBase >= 0 && afterTarget >= 0 ? vectors.cosine(afterBase, afterTarget) : null);
     }
 
-    private static Stream<CosineResult> cosineResultStream(List<FractalsPattern> fractalsPatterns, FractalsPattern base) {
+    /**
+     * For every pattern, the index of the first pattern in the list that directly follows it (see
+     * {@link FractalsPattern#isBefore}), or -1 when there is none.
+     */
+    static int[] successorIndex(List<FractalsPattern> fractalsPatterns) {
+        Map<ZonedDateTime, Integer> byLastDateTime = new HashMap<>();
+        for (int i = 0; i < fractalsPatterns.size(); i++) {
+            FractalsPattern fractalsPattern = fractalsPatterns.get(i);
+            byLastDateTime.putIfAbsent(fractalsPattern.fractals.get(fractalsPattern.fractalsCount() - 1).dateTime, i);
+        }
         return fractalsPatterns.stream()
+                .mapToInt(fractalsPattern -> byLastDateTime.getOrDefault(fractalsPattern.fractals.getFirst().dateTime, -1))
+                .toArray();
+    }
+
+    private static Stream<ScoredPair> scoredPairs(IndexedPatterns indexedPatterns, SimilarityMetric metric, int base, BigDecimal cosineMinValue, BigDecimal minLengthRation, BoundCounts boundCounts) {
+        double[] bounds = metric.upperBounds(base);
+        return scoredPairs(indexedPatterns, metric, base, IntStream.range(0, bounds.length), target -> bounds[target], cosineMinValue, minLengthRation, boundCounts);
+    }
+
+    /**
+     * The pairs of {@code base} and {@code targets} that pass the thresholds, in the order of {@code targets}.
+     */
+    static Stream<ScoredPair> scoredPairs(IndexedPatterns indexedPatterns, SimilarityMetric metric, int base, IntStream targets, IntToDoubleFunction bound, BigDecimal cosineMinValue, BigDecimal minLengthRation, BoundCounts boundCounts) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        FractalsPattern basePattern = vectors.pattern(base);
+        double minValue = cosineMinValue.doubleValue();
+        int[] all = targets.toArray();
+        int[] candidates = bounded(vectors, base, Arrays.stream(all), bound, minValue, minLengthRation.doubleValue());
+        boundCounts.add(all.length, candidates.length);
+        return Arrays.stream(candidates)
                 .parallel()
-                .filter(target -> !target.equals(base))
-                .map(target -> new CosineResult(
-                        base,
-                        target,
-                        base.cosine(target),
-                        base.lengthRatio(target),
-                        null,
-                        null,
-                        null)
-                );
+                .filter(target -> !vectors.pattern(target).equals(basePattern))
+                .mapToObj(target -> {
+                    double value = metric.value(base, target, bound.applyAsDouble(target), minValue);
+                    return PatternVectors.mayReach(value, minValue) ? new ScoredPair(base, target, metric.reported(base, target, value), vectors.lengthRatio(base, target)) : null;
+                })
+                .filter(Objects::nonNull)
+                .filter(scoredPair -> scoredPair.cosine.compareTo(cosineMinValue) >= 0)
+                .filter(scoredPair -> scoredPair.lengthRatio.compareTo(minLengthRation) >= 0);
+    }
+
+    /**
+     * The targets whose upper bound and length ratio may reach the minimums, in the order of {@code targets}.
+     */
+    private static int[] bounded(PatternVectors vectors, int base, IntStream targets, IntToDoubleFunction bound, double minValue, double minRatio) {
+        return targets
+                .filter(target -> PatternVectors.mayReach(bound.applyAsDouble(target), minValue))
+                .filter(target -> PatternVectors.mayReach(vectors.lengthRatioValue(base, target), minRatio))
+                .toArray();
+    }
+
+    /**
+     * Candidates of all bases of an all-pairs run and those left after the bounds, recorded as the {@code bounds}
+     * stage.
+     */
+    static final class BoundCounts {
+
+        private final LongAdder candidates = new LongAdder();
+        private final LongAdder bounded = new LongAdder();
+
+        void add(long candidateCount, long boundedCount) {
+            candidates.add(candidateCount);
+            bounded.add(boundedCount);
+        }
+
+        void record(int patternSize) {
+            StageMetrics.count("bounds", patternSize, candidates.sum(), bounded.sum());
+        }
     }
 
     static List<CosineResult> calculateCosines(List<FractalsPattern> fractalPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
-        var lastFractalPattern = fractalPatterns.getFirst();
-        return fractalPatterns.stream()
+        return calculateCosines(IndexedPatterns.of(fractalPatterns), cosineMinValue, minLengthRation);
+    }
+
+    static List<CosineResult> calculateCosines(IndexedPatterns indexedPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
+        return calculateCosines(indexedPatterns, 0, cosineMinValue, minLengthRation);
+    }
+
+    /**
+     * Matches the pattern at index {@code base} (the latest one in the regular run) against all other patterns, with
+     * the selected {@link SimilarityMetric}.
+     */
+    static List<CosineResult> calculateCosines(IndexedPatterns indexedPatterns, int base, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        SimilarityMetric metric = SimilarityMetric.selected(vectors);
+        double[] bounds = metric.upperBounds(base);
+        return calculateCosines(indexedPatterns, base, IntStream.range(0, vectors.count()), metric, target -> bounds[target], cosineMinValue, minLengthRation);
+    }
+
+    /**
+     * Like {@link #calculateCosines(IndexedPatterns, int, BigDecimal, BigDecimal)}, but scores only the candidates
+     * returned by the approximate {@code index}; matches the index misses are lost.
+     */
+    static List<CosineResult> calculateCosines(IndexedPatterns indexedPatterns, int base, BigDecimal cosineMinValue, BigDecimal minLengthRation, LshIndex index) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        return calculateCosines(indexedPatterns, base, Arrays.stream(index.candidates(base)), new CosineMetric(vectors), target -> vectors.cosineValue(base, target), cosineMinValue, minLengthRation);
+    }
+
+    private static List<CosineResult> calculateCosines(IndexedPatterns indexedPatterns, int base, IntStream targets, SimilarityMetric metric, IntToDoubleFunction bound, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        var basePattern = vectors.pattern(base);
+        double minValue = cosineMinValue.doubleValue();
+        int[] all = targets.toArray();
+        int[] candidates = bounded(vectors, base, Arrays.stream(all).parallel(), bound, minValue, minLengthRation.doubleValue());
+        StageMetrics.count("bounds", vectors.size(), all.length, candidates.length);
+        return Arrays.stream(candidates)
                 .parallel()
-                .filter(fp -> !fp.equals(lastFractalPattern))
-                .map(fp -> new CosineResult(
-                        lastFractalPattern,
-                        fp,
-                        lastFractalPattern.cosine(fp),
-                        lastFractalPattern.lengthRatio(fp),
-                        null,
-                        findFollowingFractalPattern(fractalPatterns, fp),
-                        null)
-                )
+                .filter(fp -> !vectors.pattern(fp).equals(basePattern))
+                .mapToObj(fp -> {
+                    double value = metric.value(base, fp, bound.applyAsDouble(fp), minValue);
+                    return PatternVectors.mayReach(value, minValue) ? new CosineResult(
+                            basePattern,
+                            vectors.pattern(fp),
+                            metric.reported(base, fp, value),
+                            vectors.lengthRatio(base, fp),
+                            null,
+                            indexedPatterns.following(fp),
+                            null) : null;
+                })
+                .filter(Objects::nonNull)
                 .filter(cr -> cr.cosine.compareTo(cosineMinValue) >= 0)
                 .filter(cr -> cr.lengthRatio.compareTo(minLengthRation) >= 0)
                 .sorted(comparing(o -> o.cosine, reverseOrder()))
@@ -244,14 +408,11 @@ public class FractalsDotProduct {
                 .toList();
     }
 
+    /**
+     * The fractals of {@code fractalSize} bars ({@code -DfractalSize}, 5 by default), newest first like the bars.
+     */
     static List<Fractal> fractals(List<HighLow> highLows) {
-        return IntStream.range(0, highLows.size() - fractalSize + 1)
-                .mapToObj(start -> highLows.subList(start, start + fractalSize))
-                .parallel()
-                .map(FractalsDotProduct::toFractal)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(toList());
+        return FractalDetector.fractals(highLows, fractalSize);
     }
 
     static List<Fractal> valueDiff(List<Fractal> fractals) {
@@ -280,42 +441,7 @@ public class FractalsDotProduct {
                 .toList();
     }
 
-    private static Optional<Fractal> toFractal(List<HighLow> highLows) {
-        HighLow middleHL = highLows.get(2);
-        boolean isUpFractal = isUpFractal(highLows, middleHL);
-        boolean isDownFractal = isDownFractal(highLows, middleHL);
-        return createFractal(middleHL, isUpFractal, isDownFractal);
-    }
-
-    private static boolean isDownFractal(List<HighLow> highLows, HighLow middleHL) {
-        BigDecimal l1 = highLows.get(0).low;
-        BigDecimal l2 = highLows.get(1).low;
-        BigDecimal hl = middleHL.low;
-        BigDecimal l4 = highLows.get(3).low;
-        BigDecimal l5 = highLows.get(4).low;
-        return l1.compareTo(hl) > 0 && l2.compareTo(hl) > 0 && hl.compareTo(l4) < 0 && hl.compareTo(l5) < 0;
-    }
-
-    private static boolean isUpFractal(List<HighLow> highLows, HighLow middleHL) {
-        BigDecimal h1 = highLows.get(0).high;
-        BigDecimal h2 = highLows.get(1).high;
-        BigDecimal hf = middleHL.high;
-        BigDecimal h4 = highLows.get(3).high;
-        BigDecimal h5 = highLows.get(4).high;
-        return h1.compareTo(hf) < 0 && h2.compareTo(hf) < 0 && hf.compareTo(h4) > 0 && hf.compareTo(h5) > 0;
-    }
-
-    private static Optional<Fractal> createFractal(HighLow middleHL, boolean isUpFractal, boolean isDownFractal) {
-        if (isUpFractal) {
-            return Optional.of(new Fractal(middleHL.dateTime, middleHL.high, null));
-        } else if (isDownFractal) {
-            return Optional.of(new Fractal(middleHL.dateTime, middleHL.low, null));
-        } else {
-            return Optional.empty();
-        }
-    }
-
-    private static HighLow toHighLow(String line) {
+    static HighLow toHighLow(String line) {
         String[] split = line.split(",");
         if (split.length < 3) {
             throw new IllegalArgumentException(line);
@@ -401,6 +527,32 @@ public class FractalsDotProduct {
         }
     }
 
+    /**
+     * Patterns of one size together with the data derived from them once, right after {@link #fractalsPatterns}.
+     */
+    record IndexedPatterns(List<FractalsPattern> patterns, PatternVectors vectors, int[] successors) {
+
+        static IndexedPatterns of(List<FractalsPattern> fractalsPatterns) {
+            return new IndexedPatterns(fractalsPatterns, PatternVectors.of(fractalsPatterns), successorIndex(fractalsPatterns));
+        }
+
+        FractalsPattern following(int index) {
+            int successor = successors[index];
+            return successor >= 0 ? patterns.get(successor) : null;
+        }
+    }
+
+    /**
+     * A base/target pair of {@link IndexedPatterns} that passed the thresholds, before the following patterns are
+     * looked up.
+     */
+    record ScoredPair(int base, int target, BigDecimal cosine, BigDecimal lengthRatio) {
+
+        static final Comparator<ScoredPair> bestFirst = comparing(ScoredPair::cosine, reverseOrder())
+                .thenComparingInt(ScoredPair::base)
+                .thenComparingInt(ScoredPair::target);
+    }
+
     record CosineResult(FractalsPattern base,
                         FractalsPattern target,
                         BigDecimal cosine,
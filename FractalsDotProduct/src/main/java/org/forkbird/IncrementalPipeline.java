@@ -0,0 +1,430 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.reverseOrder;
+import static org.forkbird.FractalsDotProduct.bigDecimalScale;
+import static org.forkbird.FractalsDotProduct.fractalSize;
+import static org.forkbird.FractalsDotProduct.roundingMode;
+
+/**
+ * Keeps the derived state of one price file (last bars, fractals and their changes) in memory and brings it up to
+ * date from the lines appended to the file since the previous {@link #poll()}, instead of re-reading and recomputing
+ * everything.
+ * <p>
+ * A fractal is confirmed {@code fractalSize / 2} bars after its middle bar, so every new bar confirms at most one new
+ * fractal, which adds one change and one pattern per size. {@link #scoreLatest} then scores only the newest pattern
+ * and returns the same results as {@link FractalsDotProduct#calculateCosines} on a full recompute.
+ * <p>
+ * Appended lines must be newer than the last bar; a file that shrank, was rewritten or gets out-of-order lines is
+ * reloaded from the start.
+ * <p>
+ * A newest-first file, like the {@code HL_} export of {@code Bars.mq5}, is instead rewritten as a whole on every
+ * export, with bars that are still forming on top. Its newest bar is therefore added on top of a checkpoint of the
+ * state before it, and a rewrite is diffed against the previous head: the lines above the line of the bar before the
+ * checkpoint replace the newest bar, after the state is rolled back to the checkpoint. Only the head of the file is
+ * read; a file whose line at the checkpoint changed, or whose head is not newest first, is reloaded from the start.
+ */
+final class IncrementalPipeline {
+
+    private final File file;
+    private long offset;
+    private byte[] lastLine = new byte[0];
+    private FractalDetector detector = new FractalDetector(fractalSize);
+    private HighLow lastBar;
+    private Fractal lastFractal;
+    private final List<Fractal> changes = new ArrayList<>();
+    private double[] changeValues = new double[1024];
+    private int first = 1024;
+    private double[] dots = new double[0];
+    private double[] normSquares = new double[0];
+    private int reloads;
+    private long version;
+    private boolean newestFirst;
+    private String headLine;
+    private Checkpoint checkpoint;
+
+    /**
+     * The state before the newest bar of a newest-first file, with the line of the bar before it.
+     */
+    private record Checkpoint(FractalDetector detector, HighLow lastBar, Fractal lastFractal, int changes, String line) {
+    }
+
+    IncrementalPipeline(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Ingests the complete lines appended since the last call.
+     *
+     * @return the number of new bars, or -1 when the file had to be reloaded from the start
+     */
+    int poll() throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long length = input.length();
+            if (newestFirst) {
+                return pollHead(input, length);
+            }
+            if (length < offset || !endsWithLastLine(input)) {
+                reset();
+                load(input, length);
+                return -1;
+            }
+            return ingestFrom(input, length);
+        }
+    }
+
+    private void load(RandomAccessFile input, long length) throws IOException {
+        reloads++;
+        byte[] bytes = read(input, 0, length);
+        int end = lastLineEnd(bytes);
+        List<String> lines = new ArrayList<>();
+        forEachLine(bytes, 0, end, lines::add);
+        List<HighLow> highLows = new ArrayList<>(lines.stream().map(FractalsDotProduct::toHighLow).toList());
+        List<HighLow> fileOrder = List.copyOf(highLows);
+        highLows.sort(comparing(HighLow::dateTime));
+        newestFirst = highLows.size() > 1 && fileOrder.getFirst() == highLows.getLast() && fileOrder.get(1) == highLows.get(highLows.size() - 2);
+        if (newestFirst) {
+            highLows.subList(0, highLows.size() - 1).forEach(this::addBar);
+            addHead(highLows.getLast(), lines.getFirst(), lines.get(1));
+        } else {
+            highLows.forEach(this::addBar);
+            advance(bytes, 0, end);
+        }
+    }
+
+    /**
+     * Diffs the head of a rewritten newest-first file against the previous one.
+     *
+     * @return the number of bars newer than the previous newest one, or -1 when the file had to be reloaded
+     */
+    private int pollHead(RandomAccessFile input, long length) throws IOException {
+        List<String> lines = linesAbove(input, length, checkpoint.line());
+        List<HighLow> highLows = lines != null ? lines.stream().map(FractalsDotProduct::toHighLow).toList() : List.of();
+        if (highLows.isEmpty() || !descending(highLows, checkpoint.lastBar())) {
+            reset();
+            load(input, length);
+            return -1;
+        }
+        if (lines.size() == 1 && lines.getFirst().equals(headLine)) {
+            return 0;
+        }
+        HighLow previousHead = lastBar;
+        String previousLine = lines.size() > 1 ? lines.get(1) : checkpoint.line();
+        rollback();
+        for (int i = highLows.size() - 1; i > 0; i--) {
+            addBar(highLows.get(i));
+        }
+        addHead(highLows.getFirst(), lines.getFirst(), previousLine);
+        return (int) highLows.stream().filter(highLow -> highLow.dateTime().isAfter(previousHead.dateTime())).count();
+    }
+
+    /**
+     * Whether {@code highLows} are newest first and all newer than {@code older}.
+     */
+    private static boolean descending(List<HighLow> highLows, HighLow older) {
+        for (HighLow highLow : highLows.reversed()) {
+            if (!highLow.dateTime().isAfter(older.dateTime())) {
+                return false;
+            }
+            older = highLow;
+        }
+        return true;
+    }
+
+    /**
+     * The lines above {@code line} at the head of the file, read in growing windows, or {@code null} when the file
+     * does not have it.
+     */
+    private static List<String> linesAbove(RandomAccessFile input, long length, String line) throws IOException {
+        for (long window = 1 << 16; ; window *= 2) {
+            byte[] bytes = read(input, 0, Math.min(window, length));
+            List<String> lines = new ArrayList<>();
+            boolean found = forEachLineUntil(bytes, 0, lastLineEnd(bytes), other -> {
+                if (other.equals(line)) {
+                    return true;
+                }
+                lines.add(other);
+                return false;
+            });
+            if (found) {
+                return lines;
+            }
+            if (window >= length) {
+                return null;
+            }
+        }
+    }
+
+    private void addHead(HighLow head, String line, String previousLine) {
+        checkpoint = new Checkpoint(detector.copy(), lastBar, lastFractal, changes.size(), previousLine);
+        headLine = line;
+        addBar(head);
+    }
+
+    private void rollback() {
+        detector = checkpoint.detector();
+        lastBar = checkpoint.lastBar();
+        lastFractal = checkpoint.lastFractal();
+        while (changes.size() > checkpoint.changes()) {
+            changes.removeLast();
+            first++;
+            version++;
+        }
+    }
+
+    private int ingestFrom(RandomAccessFile input, long length) throws IOException {
+        byte[] bytes = read(input, offset, length);
+        int end = lastLineEnd(bytes);
+        List<HighLow> highLows = new ArrayList<>();
+        forEachLine(bytes, 0, end, line -> highLows.add(FractalsDotProduct.toHighLow(line)));
+        for (int i = 0; i < highLows.size(); i++) {
+            HighLow previous = i > 0 ? highLows.get(i - 1) : lastBar;
+            if (previous != null && !highLows.get(i).dateTime().isAfter(previous.dateTime())) {
+                reset();
+                load(input, length);
+                return -1;
+            }
+        }
+        highLows.forEach(this::addBar);
+        advance(bytes, offset, end);
+        return highLows.size();
+    }
+
+    private void addBar(HighLow highLow) {
+        lastBar = highLow;
+        Fractal fractal = detector.add(highLow);
+        if (fractal != null) {
+            addFractal(fractal);
+        }
+    }
+
+    private void addFractal(Fractal fractal) {
+        if (lastFractal != null) {
+            BigDecimal change = fractal.value().subtract(lastFractal.value()).divide(lastFractal.value(), bigDecimalScale, roundingMode);
+            if (first == 0) {
+                int capacity = changeValues.length;
+                double[] grownValues = new double[capacity * 2];
+                System.arraycopy(changeValues, 0, grownValues, capacity, capacity);
+                changeValues = grownValues;
+                first = capacity;
+            }
+            double value = change.doubleValue();
+            first--;
+            changeValues[first] = value;
+            changes.add(new Fractal(fractal.dateTime(), fractal.value(), change));
+            version++;
+        }
+        lastFractal = fractal;
+    }
+
+    /**
+     * Matches the newest pattern of {@code patternSize} changes against all older ones. The dot products and squared
+     * norms are summed over each window in the order of {@link PatternVectors}, so the values and their reported
+     * truncation are the same as on a full recompute however long and uneven the history is.
+     */
+    List<CosineResult> scoreLatest(int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation) {
+        int count = patternCount(patternSize);
+        if (count <= 0) {
+            throw new NoSuchElementException("Not enough fractals for pattern size %d".formatted(patternSize));
+        }
+        if (dots.length < count) {
+            dots = new double[Math.max(count, dots.length * 2)];
+            normSquares = new double[dots.length];
+        }
+        Arrays.fill(dots, 0, count, 0);
+        Arrays.fill(normSquares, 0, count, 0);
+        for (int j = 0; j < patternSize; j++) {
+            double baseChange = changeValues[first + j];
+            int offset = first + j;
+            for (int target = 0; target < count; target++) {
+                double change = changeValues[offset + target];
+                dots[target] += baseChange * change;
+                normSquares[target] += change * change;
+            }
+        }
+        double baseNormSquare = normSquares[0];
+        double baseNorm = Math.sqrt(baseNormSquare);
+        double minCosine = cosineMinValue.doubleValue();
+        double minRatio = minLengthRation.doubleValue();
+        double reachableRatio = Math.max(minRatio - 1e-4, 0);
+        double reachableRatioSquare = reachableRatio * reachableRatio;
+        double reachableCosine = minCosine - 1e-4;
+        double reachableCosineSquare = reachableCosine * reachableCosine;
+        FractalsPattern base = pattern(0, patternSize);
+        List<CosineResult> results = new ArrayList<>();
+        for (int target = 1; target < count; target++) {
+            double targetNormSquare = normSquares[target];
+            double dot = dots[target];
+            boolean ratioUnreachable = Math.min(baseNormSquare, targetNormSquare) < reachableRatioSquare * Math.max(baseNormSquare, targetNormSquare);
+            boolean cosineUnreachable = reachableCosine > 0 & (dot <= 0 | dot * dot < reachableCosineSquare * baseNormSquare * targetNormSquare);
+            if (ratioUnreachable | cosineUnreachable) {
+                continue;
+            }
+            double cosine = dot / Math.sqrt(baseNormSquare * targetNormSquare);
+            double targetNorm = Math.sqrt(targetNormSquare);
+            double lengthRatio = baseNorm > targetNorm ? targetNorm / baseNorm : baseNorm / targetNorm;
+            if (!PatternVectors.mayReach(cosine, minCosine) || !PatternVectors.mayReach(lengthRatio, minRatio)) {
+                continue;
+            }
+            FractalsPattern targetPattern = pattern(target, patternSize);
+            BigDecimal reportedCosine = PatternVectors.toReported(cosine, () -> base.cosine(targetPattern));
+            BigDecimal reportedRatio = PatternVectors.toReported(lengthRatio, () -> base.lengthRatio(targetPattern));
+            if (reportedCosine.compareTo(cosineMinValue) >= 0 && reportedRatio.compareTo(minLengthRation) >= 0) {
+                int following = target - patternSize + 1;
+                results.add(new CosineResult(base, targetPattern, reportedCosine, reportedRatio, null,
+                        following >= 0 ? pattern(following, patternSize) : null, null));
+            }
+        }
+        results.sort(comparing(CosineResult::cosine, reverseOrder()));
+        return results;
+    }
+
+    /**
+     * Number of patterns of the given size; pattern 0 is the newest one, as in
+     * {@link FractalsDotProduct#fractalsPatterns}.
+     */
+    int patternCount(int patternSize) {
+        return changes.size() - patternSize + 1;
+    }
+
+    FractalsPattern pattern(int index, int patternSize) {
+        int newest = changes.size() - 1 - index;
+        Fractal[] fractals = new Fractal[patternSize];
+        for (int j = 0; j < patternSize; j++) {
+            fractals[j] = changes.get(newest - j);
+        }
+        return new FractalsPattern(Arrays.asList(fractals));
+    }
+
+    /**
+     * The fractals with their changes, newest first, as returned by {@link FractalsDotProduct#valueDiff}.
+     */
+    List<Fractal> changes() {
+        return changes.reversed();
+    }
+
+    int reloads() {
+        return reloads;
+    }
+
+    /**
+     * Changes whenever {@link #changes()} does: with every new change and every reload.
+     */
+    long version() {
+        return version;
+    }
+
+    private void reset() {
+        offset = 0;
+        lastLine = new byte[0];
+        detector = new FractalDetector(fractalSize);
+        lastBar = null;
+        lastFractal = null;
+        changes.clear();
+        first = changeValues.length;
+        version++;
+        newestFirst = false;
+        headLine = null;
+        checkpoint = null;
+    }
+
+    private boolean endsWithLastLine(RandomAccessFile input) throws IOException {
+        if (lastLine.length == 0) {
+            return offset == 0;
+        }
+        return Arrays.equals(read(input, offset - lastLine.length, offset), lastLine);
+    }
+
+    private void advance(byte[] bytes, long start, int end) {
+        if (end > 0) {
+            int lineStart = end - 1;
+            while (lineStart > 0 && bytes[lineStart - 1] != '\n') {
+                lineStart--;
+            }
+            lastLine = Arrays.copyOfRange(bytes, lineStart, end);
+        }
+        offset = start + end;
+    }
+
+    private static byte[] read(RandomAccessFile input, long from, long to) throws IOException {
+        byte[] bytes = new byte[Math.toIntExact(to - from)];
+        input.seek(from);
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Length of the complete lines in {@code bytes}, i.e. up to and including the last line break.
+     */
+    private static int lastLineEnd(byte[] bytes) {
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        return end;
+    }
+
+    private static void forEachLine(byte[] bytes, int from, int to, Consumer<String> action) {
+        forEachLineUntil(bytes, from, to, line -> {
+            action.accept(line);
+            return false;
+        });
+    }
+
+    /**
+     * @return whether {@code action} stopped at a line by returning true
+     */
+    private static boolean forEachLineUntil(byte[] bytes, int from, int to, Predicate<String> action) {
+        int lineStart = from;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') {
+                String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8).strip();
+                if (!line.isEmpty() && action.test(line)) {
+                    return true;
+                }
+                lineStart = i + 1;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 5) {
+            throw new IllegalArgumentException("syntax: file patternSize minCosine minLengthRatio pollMillis");
+        }
+        IncrementalPipeline pipeline = new IncrementalPipeline(new File(args[0]));
+        int patternSize = Integer.parseInt(args[1]);
+        BigDecimal cosineMinValue = new BigDecimal(args[2]);
+        BigDecimal minLengthRatio = new BigDecimal(args[3]);
+        long pollMillis = Long.parseLong(args[4]);
+        int scoredChanges = -1;
+        while (true) {
+            pipeline.poll();
+            if (pipeline.changes.size() != scoredChanges && pipeline.patternCount(patternSize) > 0) {
+                scoredChanges = pipeline.changes.size();
+                long start = System.nanoTime();
+                List<CosineResult> cosineResults = pipeline.scoreLatest(patternSize, cosineMinValue, minLengthRatio);
+                System.out.printf("Latest pattern: %s, matches: %d, scored in %d µs%n", cosineResults.isEmpty() ? pipeline.pattern(0, patternSize) : cosineResults.getFirst().base(), cosineResults.size(), (System.nanoTime() - start) / 1000);
+                cosineResults.forEach(e -> System.out.print(FractalsDotProduct.describe(e)));
+            }
+            Thread.sleep(pollMillis);
+        }
+    }
+}
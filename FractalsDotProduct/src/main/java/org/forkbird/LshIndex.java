@@ -0,0 +1,185 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.IndexedPatterns;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Approximate nearest-neighbour index over the change vectors of {@link PatternVectors}, using random-hyperplane
+ * locality-sensitive hashing: every table hashes a pattern to the signs of its dot products with {@code bits} random
+ * hyperplanes, so two patterns with angle {@code θ} share a bit with probability {@code 1 - θ/π}.
+ * <p>
+ * A query returns the patterns that fall in the same bucket as the base in at least one of the {@code tables}, plus,
+ * with {@code probes = 1}, the buckets one bit away. More tables and probes raise recall, more bits shrink the
+ * candidate set; the candidates still have to be re-scored exactly. Building the index costs more than one
+ * brute-force scan, so it pays off when the same patterns are queried repeatedly.
+ * <p>
+ * The regular run asks one query per file and pattern size, so it scores exactly and does not use the index.
+ * {@link AnalysisServer} keeps an index per symbol and size for {@code ann=true} requests, which query the same
+ * patterns until the file gets a new change; {@link #main} measures the recall of the index settings on a price file.
+ */
+final class LshIndex {
+
+    static final int defaultTables = Integer.getInteger("annTables", 16);
+    static final int defaultBits = Integer.getInteger("annBits", 10);
+    static final int defaultProbes = Integer.getInteger("annProbes", 1);
+
+    private final int bits;
+    private final int probes;
+    private final int[][] codes;
+    private final int[][] bucketStarts;
+    private final int[][] bucketMembers;
+
+    private LshIndex(int bits, int probes, int[][] codes, int[][] bucketStarts, int[][] bucketMembers) {
+        this.bits = bits;
+        this.probes = probes;
+        this.codes = codes;
+        this.bucketStarts = bucketStarts;
+        this.bucketMembers = bucketMembers;
+    }
+
+    static LshIndex of(PatternVectors vectors) {
+        return of(vectors, defaultTables, defaultBits, defaultProbes, 42);
+    }
+
+    static LshIndex of(PatternVectors vectors, int tables, int bits, int probes, long seed) {
+        if (bits < 1 || bits > 20) {
+            throw new IllegalArgumentException("bits must be between 1 and 20: %d".formatted(bits));
+        }
+        if (probes < 0 || probes > 1) {
+            throw new IllegalArgumentException("probes must be 0 or 1: %d".formatted(probes));
+        }
+        Random random = new Random(seed);
+        int count = vectors.count();
+        int size = vectors.size();
+        int[][] codes = new int[tables][count];
+        int[][] bucketStarts = new int[tables][];
+        int[][] bucketMembers = new int[tables][];
+        for (int table = 0; table < tables; table++) {
+            double[] hyperplanes = new double[bits * size];
+            for (int i = 0; i < hyperplanes.length; i++) {
+                hyperplanes[i] = random.nextGaussian();
+            }
+            int[] tableCodes = codes[table];
+            for (int i = 0; i < count; i++) {
+                int code = 0;
+                for (int bit = 0; bit < bits; bit++) {
+                    double dot = 0;
+                    for (int j = 0; j < size; j++) {
+                        dot += hyperplanes[bit * size + j] * vectors.change(i, j);
+                    }
+                    if (dot >= 0) {
+                        code |= 1 << bit;
+                    }
+                }
+                tableCodes[i] = code;
+            }
+            int[] starts = new int[(1 << bits) + 1];
+            for (int code : tableCodes) {
+                starts[code + 1]++;
+            }
+            for (int code = 0; code < 1 << bits; code++) {
+                starts[code + 1] += starts[code];
+            }
+            int[] members = new int[count];
+            int[] next = starts.clone();
+            for (int i = 0; i < count; i++) {
+                members[next[tableCodes[i]]++] = i;
+            }
+            bucketStarts[table] = starts;
+            bucketMembers[table] = members;
+        }
+        return new LshIndex(bits, probes, codes, bucketStarts, bucketMembers);
+    }
+
+    /**
+     * Indexes of the patterns sharing a probed bucket with {@code base}, in ascending order (the base included).
+     */
+    int[] candidates(int base) {
+        BitSet candidates = new BitSet();
+        for (int table = 0; table < codes.length; table++) {
+            int code = codes[table][base];
+            addBucket(candidates, table, code);
+            if (probes > 0) {
+                for (int bit = 0; bit < bits; bit++) {
+                    addBucket(candidates, table, code ^ (1 << bit));
+                }
+            }
+        }
+        return candidates.stream().toArray();
+    }
+
+    private void addBucket(BitSet candidates, int table, int code) {
+        int[] starts = bucketStarts[table];
+        int[] members = bucketMembers[table];
+        for (int i = starts[code]; i < starts[code + 1]; i++) {
+            candidates.set(members[i]);
+        }
+    }
+
+    record RecallReport(int queries, long exactMatches, long foundMatches, long candidates, long scanned) {
+
+        double recall() {
+            return exactMatches == 0 ? 1 : (double) foundMatches / exactMatches;
+        }
+
+        double scannedFraction() {
+            return scanned == 0 ? 0 : (double) candidates / scanned;
+        }
+
+        @Override
+        public String toString() {
+            return "Recall: %.6f (%d of %d matches), candidates: %.2f%% of %d patterns scanned, queries: %d"
+                    .formatted(recall(), foundMatches, exactMatches, scannedFraction() * 100, scanned, queries);
+        }
+    }
+
+    /**
+     * Compares {@link FractalsDotProduct#calculateCosines} run with this index against the exact scan, using every
+     * {@code step}-th pattern as the query.
+     */
+    RecallReport recall(IndexedPatterns indexedPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation, int step) {
+        return IntStream.iterate(0, base -> base < indexedPatterns.patterns().size(), base -> base + step)
+                .parallel()
+                .mapToObj(base -> {
+                    Set<CosineResult> exact = Set.copyOf(FractalsDotProduct.calculateCosines(indexedPatterns, base, cosineMinValue, minLengthRation));
+                    List<CosineResult> approximate = FractalsDotProduct.calculateCosines(indexedPatterns, base, cosineMinValue, minLengthRation, this);
+                    long found = approximate.stream().filter(exact::contains).count();
+                    return new RecallReport(1, exact.size(), found, candidates(base).length, indexedPatterns.patterns().size());
+                })
+                .reduce(new RecallReport(0, 0, 0, 0, 0), (r1, r2) -> new RecallReport(
+                        r1.queries + r2.queries,
+                        r1.exactMatches + r2.exactMatches,
+                        r1.foundMatches + r2.foundMatches,
+                        r1.candidates + r2.candidates,
+                        r1.scanned + r2.scanned));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            throw new IllegalArgumentException("syntax: file patternSize minCosine minLengthRatio queryStep");
+        }
+        File file = new File(args[0]);
+        int patternSize = Integer.parseInt(args[1]);
+        BigDecimal cosineMinValue = new BigDecimal(args[2]);
+        BigDecimal minLengthRatio = new BigDecimal(args[3]);
+        int step = Integer.parseInt(args[4]);
+        try (Stream<String> lines = Files.lines(file.toPath())) {
+            IndexedPatterns indexedPatterns = IndexedPatterns.of(FractalsDotProduct.fractalsPatterns(
+                    FractalsDotProduct.valueDiff(FractalsDotProduct.fractals(FractalsDotProduct.toHighLows(lines))), patternSize));
+            LshIndex index = of(indexedPatterns.vectors());
+            System.out.printf("Tables: %d, bits: %d, probes: %d%n", defaultTables, defaultBits, defaultProbes);
+            System.out.println(index.recall(indexedPatterns, cosineMinValue, minLengthRatio, step));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.reverseOrder;
+
+/**
+ * All pattern sizes of one price file, evaluated from a fractal change series that is built once.
+ * <p>
+ * In the regular run (the latest pattern against all others), the dot products with the latest pattern and the squared
+ * norms of every pattern are running sums over the change series: size {@code s + 1} adds one product to the value of
+ * size {@code s}. One pass over the series therefore scores every size from {@code minPatternSize} to
+ * {@code maxPatternSize}, and the sums are accumulated in the same order as {@link PatternVectors}, so the results are
+ * the same as {@link FractalsDotProduct#process} for each size. The other modes (all pairs, other
+ * {@link SimilarityMetric}s) build the patterns of each size from the shared change series.
+ */
+final class PatternSizeSweep {
+
+    private static final int chunkSize = 4096;
+
+    private final List<Fractal> changes;
+    private final double[] values;
+    private final int minPatternSize;
+    private final int maxPatternSize;
+    private final BigDecimal cosineMinValue;
+    private final BigDecimal minLengthRation;
+    private final boolean calculateAll;
+    private final ResultCache cache;
+    private Candidates[] latest;
+
+    private PatternSizeSweep(List<Fractal> changes, int minPatternSize, int maxPatternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, boolean calculateAll, ResultCache cache) {
+        this.changes = changes;
+        this.values = changes.stream().mapToDouble(fractal -> fractal.change().doubleValue()).toArray();
+        this.minPatternSize = minPatternSize;
+        this.maxPatternSize = maxPatternSize;
+        this.cosineMinValue = cosineMinValue;
+        this.minLengthRation = minLengthRation;
+        this.calculateAll = calculateAll;
+        this.cache = cache;
+    }
+
+    /**
+     * The sweep of a price file; through a {@link ResultCache} when it is turned on.
+     */
+    static PatternSizeSweep of(File file, int minPatternSize, int maxPatternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, boolean calculateAll) throws IOException {
+        return ResultCache.enabled
+                ? of(ResultCache.open(file), minPatternSize, maxPatternSize, cosineMinValue, minLengthRation, calculateAll)
+                : of(FractalsDotProduct.load(file), minPatternSize, maxPatternSize, cosineMinValue, minLengthRation, calculateAll);
+    }
+
+    static PatternSizeSweep of(List<HighLow> highLows, int minPatternSize, int maxPatternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, boolean calculateAll) {
+        checkMinPatternSize(minPatternSize);
+        List<Fractal> fractals = StageMetrics.measure("fractals", 0, highLows.size(), () -> FractalsDotProduct.fractals(highLows), List::size);
+        List<Fractal> changes = StageMetrics.measure("valueDiff", 0, fractals.size(), () -> FractalsDotProduct.valueDiff(fractals), List::size);
+        return new PatternSizeSweep(List.copyOf(changes), minPatternSize, maxPatternSize, cosineMinValue, minLengthRation, calculateAll, null);
+    }
+
+    /**
+     * A sweep over the change series of {@code cache}, whose results and result files are cached.
+     */
+    static PatternSizeSweep of(ResultCache cache, int minPatternSize, int maxPatternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, boolean calculateAll) {
+        checkMinPatternSize(minPatternSize);
+        return new PatternSizeSweep(cache.changes(), minPatternSize, maxPatternSize, cosineMinValue, minLengthRation, calculateAll, cache);
+    }
+
+    private static void checkMinPatternSize(int minPatternSize) {
+        if (minPatternSize < 1) {
+            throw new IllegalArgumentException("Invalid minimal pattern size: %d".formatted(minPatternSize));
+        }
+    }
+
+    /**
+     * The fractal change series of the file, newest first.
+     */
+    List<Fractal> changes() {
+        return changes;
+    }
+
+    /**
+     * The same results as {@link FractalsDotProduct#process} with {@code patternSize} for the file of this sweep.
+     */
+    List<CosineResult> results(int patternSize) {
+        if (patternSize < minPatternSize || patternSize > maxPatternSize) {
+            throw new IllegalArgumentException("Pattern size %d outside the sweep %d..%d".formatted(patternSize, minPatternSize, maxPatternSize));
+        }
+        return cache != null
+                ? cache.results(cache.key(patternSize, cosineMinValue, minLengthRation, calculateAll), patternSize, () -> compute(patternSize))
+                : compute(patternSize);
+    }
+
+    /**
+     * The result file of {@link ResultWriter#write}; with a cache, the file written for the same results before, if
+     * it still exists.
+     */
+    File resultFile(File file, String date, int patternSize, List<CosineResult> cosineResults, long limit) throws IOException {
+        return cache != null
+                ? cache.resultFile(cache.key(patternSize, cosineMinValue, minLengthRation, calculateAll), limit, () -> ResultWriter.write(file, date, patternSize, cosineResults, limit))
+                : ResultWriter.write(file, date, patternSize, cosineResults, limit);
+    }
+
+    private List<CosineResult> compute(int patternSize) {
+        if (calculateAll || !SimilarityMetric.cosineSelected() || values.length < patternSize) {
+            return FractalsDotProduct.score(changes, patternSize, cosineMinValue, minLengthRation, calculateAll);
+        }
+        if (latest == null) {
+            latest = StageMetrics.measure("sweep", maxPatternSize, (long) values.length * (maxPatternSize - minPatternSize + 1), this::scoreLatest,
+                    candidates -> Arrays.stream(candidates).filter(Objects::nonNull).mapToLong(c -> c.targets.length).sum());
+        }
+        Candidates candidates = latest[patternSize];
+        StageMetrics.count("bounds", patternSize, values.length - patternSize + 1, candidates.targets.length);
+        return StageMetrics.measure("score", patternSize, candidates.targets.length, () -> toCosineResults(patternSize, candidates), List::size);
+    }
+
+    /**
+     * Targets of one size that may pass the thresholds, in ascending order, with their double cosine and length ratio.
+     */
+    private record Candidates(int[] targets, double[] cosines, double[] lengthRatios) {
+
+        static Candidates concat(List<Candidates> chunks) {
+            return new Candidates(
+                    chunks.stream().flatMapToInt(chunk -> Arrays.stream(chunk.targets)).toArray(),
+                    chunks.stream().flatMapToDouble(chunk -> Arrays.stream(chunk.cosines)).toArray(),
+                    chunks.stream().flatMapToDouble(chunk -> Arrays.stream(chunk.lengthRatios)).toArray());
+        }
+    }
+
+    private Candidates[] scoreLatest() {
+        int maxSize = Math.min(maxPatternSize, values.length);
+        double[] baseNormSquares = new double[maxSize + 1];
+        for (int size = 1; size <= maxSize; size++) {
+            baseNormSquares[size] = baseNormSquares[size - 1] + values[size - 1] * values[size - 1];
+        }
+        double minCosine = cosineMinValue.doubleValue();
+        double minRatio = minLengthRation.doubleValue();
+        int count = values.length - minPatternSize + 1;
+        List<Candidates[]> chunks = IntStream.range(0, (count + chunkSize - 1) / chunkSize)
+                .parallel()
+                .mapToObj(chunk -> scoreLatest(chunk * chunkSize, Math.min(count, (chunk + 1) * chunkSize), maxSize, baseNormSquares, minCosine, minRatio))
+                .toList();
+        Candidates[] candidates = new Candidates[maxPatternSize + 1];
+        for (int size = minPatternSize; size <= maxSize; size++) {
+            int s = size;
+            candidates[size] = Candidates.concat(chunks.stream().map(chunk -> chunk[s]).toList());
+        }
+        return candidates;
+    }
+
+    private Candidates[] scoreLatest(int from, int to, int maxSize, double[] baseNormSquares, double minCosine, double minRatio) {
+        int sizes = maxSize - minPatternSize + 1;
+        int[][] targets = new int[sizes][to - from];
+        double[][] cosines = new double[sizes][to - from];
+        double[][] lengthRatios = new double[sizes][to - from];
+        int[] found = new int[sizes];
+        for (int target = from; target < to; target++) {
+            double dot = 0;
+            double normSquare = 0;
+            int lastSize = Math.min(maxSize, values.length - target);
+            for (int size = 1; size <= lastSize; size++) {
+                double value = values[target + size - 1];
+                dot += value * values[size - 1];
+                normSquare += value * value;
+                if (size < minPatternSize) {
+                    continue;
+                }
+                double cosine = dot / Math.sqrt(baseNormSquares[size] * normSquare);
+                double baseNorm = Math.sqrt(baseNormSquares[size]);
+                double norm = Math.sqrt(normSquare);
+                double lengthRatio = baseNorm > norm ? norm / baseNorm : baseNorm / norm;
+                if (PatternVectors.mayReach(cosine, minCosine) && PatternVectors.mayReach(lengthRatio, minRatio)) {
+                    int s = size - minPatternSize;
+                    targets[s][found[s]] = target;
+                    cosines[s][found[s]] = cosine;
+                    lengthRatios[s][found[s]++] = lengthRatio;
+                }
+            }
+        }
+        Candidates[] candidates = new Candidates[maxSize + 1];
+        for (int s = 0; s < sizes; s++) {
+            candidates[s + minPatternSize] = new Candidates(
+                    Arrays.copyOf(targets[s], found[s]), Arrays.copyOf(cosines[s], found[s]), Arrays.copyOf(lengthRatios[s], found[s]));
+        }
+        return candidates;
+    }
+
+    private List<CosineResult> toCosineResults(int patternSize, Candidates candidates) {
+        FractalsPattern basePattern = pattern(0, patternSize);
+        List<CosineResult> results = new ArrayList<>();
+        for (int i = 0; i < candidates.targets.length; i++) {
+            int target = candidates.targets[i];
+            FractalsPattern targetPattern = pattern(target, patternSize);
+            if (targetPattern.equals(basePattern)) {
+                continue;
+            }
+            BigDecimal cosine = PatternVectors.toReported(candidates.cosines[i], () -> basePattern.cosine(targetPattern));
+            BigDecimal lengthRatio = PatternVectors.toReported(candidates.lengthRatios[i], () -> basePattern.lengthRatio(targetPattern));
+            if (cosine.compareTo(cosineMinValue) >= 0 && lengthRatio.compareTo(minLengthRation) >= 0) {
+                results.add(new CosineResult(basePattern, targetPattern, cosine, lengthRatio, null, following(target, patternSize), null));
+            }
+        }
+        results.sort(comparing(CosineResult::cosine, reverseOrder()));
+        return List.copyOf(results);
+    }
+
+    private FractalsPattern pattern(int index, int patternSize) {
+        return new FractalsPattern(changes.subList(index, index + patternSize));
+    }
+
+    /**
+     * The first pattern of the given size that directly follows the pattern at {@code index}, as found by
+     * {@link FractalsDotProduct#successorIndex}: the first pattern whose last fractal has the date-time of the first
+     * fractal of {@code index}. Fractals with the same date-time are adjacent in the change series, which is sorted
+     * newest first.
+     */
+    private FractalsPattern following(int index, int patternSize) {
+        ZonedDateTime dateTime = changes.get(index).dateTime();
+        int first = index;
+        while (first > 0 && changes.get(first - 1).dateTime().equals(dateTime)) {
+            first--;
+        }
+        int last = Math.max(first, patternSize - 1);
+        return last < changes.size() && changes.get(last).dateTime().equals(dateTime) ? pattern(last - patternSize + 1, patternSize) : null;
+    }
+}
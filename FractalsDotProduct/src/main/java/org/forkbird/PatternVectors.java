@@ -0,0 +1,211 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Numeric view of a list of {@link FractalsPattern}s: the {@code change} values of every pattern are copied once
+ * into one contiguous {@code double[]} (pattern {@code i} occupies {@code [i * size, (i + 1) * size)}) together with
+ * the precomputed squared norms, so scoring a pair is an allocation-free loop. The same values are also kept
+ * dimension-major ({@code columns[j * count + i]} is change {@code j} of pattern {@code i}), the structure-of-arrays
+ * block the batch {@link CosineKernel}s stream through when one base is scored against all targets.
+ * <p>
+ * Only the reported values are converted back to {@link BigDecimal}. They are truncated to the same scale and with the
+ * same rounding mode as {@link FractalsPattern#cosine} and {@link FractalsPattern#lengthRatio}; when the double result
+ * is too close to a truncation boundary to be trusted, the exact {@code BigDecimal} computation is used instead.
+ */
+final class PatternVectors {
+
+    private static final int scale = 4;
+    private static final double scaleFactor = 10_000;
+    private static final double boundaryTolerance = 1e-6;
+
+    private final List<FractalsPattern> patterns;
+    private final int size;
+    private final double[] changes;
+    private final double[] columns;
+    private final double[] normSquares;
+    private final double[] norms;
+
+    private PatternVectors(List<FractalsPattern> patterns, int size, double[] changes, double[] columns, double[] normSquares, double[] norms) {
+        this.patterns = patterns;
+        this.size = size;
+        this.changes = changes;
+        this.columns = columns;
+        this.normSquares = normSquares;
+        this.norms = norms;
+    }
+
+    static PatternVectors of(List<FractalsPattern> patterns) {
+        int count = patterns.size();
+        int size = count > 0 ? patterns.getFirst().fractalsCount() : 0;
+        double[] changes = new double[count * size];
+        double[] columns = new double[count * size];
+        double[] normSquares = new double[count];
+        double[] norms = new double[count];
+        for (int i = 0; i < count; i++) {
+            List<Fractal> fractals = patterns.get(i).fractals();
+            if (fractals.size() != size) {
+                throw new IllegalArgumentException("Patterns of different sizes: %d and %d".formatted(size, fractals.size()));
+            }
+            double normSquare = 0;
+            for (int j = 0; j < size; j++) {
+                double change = fractals.get(j).change().doubleValue();
+                changes[i * size + j] = change;
+                columns[j * count + i] = change;
+                normSquare += change * change;
+            }
+            normSquares[i] = normSquare;
+            norms[i] = Math.sqrt(normSquare);
+        }
+        return new PatternVectors(patterns, size, changes, columns, normSquares, norms);
+    }
+
+    /**
+     * The same patterns with the mean change of every pattern subtracted; their cosines are the Pearson correlations
+     * of the changes.
+     */
+    PatternVectors centered() {
+        int count = count();
+        double[] centeredChanges = new double[count * size];
+        double[] centeredColumns = new double[count * size];
+        double[] centeredNormSquares = new double[count];
+        double[] centeredNorms = new double[count];
+        for (int i = 0; i < count; i++) {
+            double mean = 0;
+            for (int j = 0; j < size; j++) {
+                mean += changes[i * size + j];
+            }
+            mean /= size;
+            double normSquare = 0;
+            for (int j = 0; j < size; j++) {
+                double change = changes[i * size + j] - mean;
+                centeredChanges[i * size + j] = change;
+                centeredColumns[j * count + i] = change;
+                normSquare += change * change;
+            }
+            centeredNormSquares[i] = normSquare;
+            centeredNorms[i] = Math.sqrt(normSquare);
+        }
+        return new PatternVectors(patterns, size, centeredChanges, centeredColumns, centeredNormSquares, centeredNorms);
+    }
+
+    int count() {
+        return normSquares.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    FractalsPattern pattern(int index) {
+        return patterns.get(index);
+    }
+
+    List<FractalsPattern> patterns() {
+        return patterns;
+    }
+
+    double norm(int index) {
+        return norms[index];
+    }
+
+    double change(int index, int j) {
+        return changes[index * size + j];
+    }
+
+    double[] columns() {
+        return columns;
+    }
+
+    double[] normSquares() {
+        return normSquares;
+    }
+
+    double dot(int a, int b) {
+        double dot = 0;
+        int offsetA = a * size;
+        int offsetB = b * size;
+        for (int j = 0; j < size; j++) {
+            dot += changes[offsetA + j] * changes[offsetB + j];
+        }
+        return dot;
+    }
+
+    double cosineValue(int a, int b) {
+        return dot(a, b) / Math.sqrt(normSquares[a] * normSquares[b]);
+    }
+
+    double lengthRatioValue(int a, int b) {
+        return norms[a] > norms[b] ? norms[b] / norms[a] : norms[a] / norms[b];
+    }
+
+    BigDecimal cosine(int a, int b) {
+        return cosine(a, b, cosineValue(a, b));
+    }
+
+    /**
+     * The reported cosine of {@code a} and {@code b} when {@code cosineValue} has already been computed, e.g. by a
+     * {@link CosineKernel}.
+     */
+    BigDecimal cosine(int a, int b, double cosineValue) {
+        return toReported(cosineValue, () -> patterns.get(a).cosine(patterns.get(b)));
+    }
+
+    BigDecimal lengthRatio(int a, int b) {
+        return toReported(lengthRatioValue(a, b), () -> patterns.get(a).lengthRatio(patterns.get(b)));
+    }
+
+    /**
+     * Truncates {@code value} to the reported scale, or falls back to {@code exact} when the truncated digits are not
+     * reliable (value within rounding error of a boundary, or not a number at all).
+     */
+    static BigDecimal toReported(double value, Supplier<BigDecimal> exact) {
+        double scaled = value * scaleFactor;
+        double distance = Math.abs(scaled - Math.rint(scaled));
+        if (!(distance > boundaryTolerance)) {
+            return exact.get();
+        }
+        return BigDecimal.valueOf((long) scaled, scale);
+    }
+
+    /**
+     * {@link #toReported} as a number of units of the last reported digit, without building the {@link BigDecimal}
+     * unless the exact value is needed.
+     */
+    static long toReportedUnits(double value, Supplier<BigDecimal> exact) {
+        double scaled = value * scaleFactor;
+        double distance = Math.abs(scaled - Math.rint(scaled));
+        if (!(distance > boundaryTolerance)) {
+            return exact.get().setScale(scale, RoundingMode.DOWN).unscaledValue().longValueExact();
+        }
+        return (long) scaled;
+    }
+
+    /**
+     * Whether a double {@code value} can still reach {@code minValue} once truncated; used to skip building the
+     * reported {@link BigDecimal} for pairs that cannot pass a threshold.
+     */
+    static boolean mayReach(double value, double minValue) {
+        return !(value < reachLimit(minValue));
+    }
+
+    /**
+     * The lowest double value that {@link #mayReach} {@code minValue}.
+     */
+    static double reachLimit(double minValue) {
+        return minValue - 1.0 / scaleFactor;
+    }
+
+    /**
+     * A value of a metric that is defined on doubles only, truncated like the reported cosine.
+     */
+    static BigDecimal truncated(double value) {
+        return new BigDecimal(value).setScale(scale, RoundingMode.DOWN);
+    }
+}
@@ -0,0 +1,47 @@
+package org.forkbird;
+
+import java.math.BigDecimal;
+
+/**
+ * Pearson correlation of the changes of two patterns: the cosine of the {@link PatternVectors#centered} patterns, so
+ * it ignores a common drift and compares only the shape.
+ */
+final class PearsonMetric implements SimilarityMetric {
+
+    private final PatternVectors centered;
+
+    PearsonMetric(PatternVectors vectors) {
+        this.centered = vectors.centered();
+    }
+
+    @Override
+    public double upperBound(int base, int target) {
+        double bound = centered.cosineValue(base, target);
+        return Double.isNaN(bound) ? Double.NEGATIVE_INFINITY : bound;
+    }
+
+    @Override
+    public void upperBounds(int base, double[] bounds) {
+        CosineKernel.selected().cosines(centered, base, bounds);
+        for (int t = 0; t < bounds.length; t++) {
+            if (Double.isNaN(bounds[t])) {
+                bounds[t] = Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    @Override
+    public double value(int base, int target, double bound, double minValue) {
+        return bound;
+    }
+
+    @Override
+    public BigDecimal reported(int base, int target, double value) {
+        return PatternVectors.truncated(value);
+    }
+
+    @Override
+    public int count() {
+        return centered.count();
+    }
+}
@@ -0,0 +1,180 @@
+package org.forkbird;
+
+import java.io.File;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coarser timeframes of a {@link BarSeries}, built in memory instead of exporting every timeframe separately.
+ * <p>
+ * A bar of a timeframe spans the bars whose open time falls into its bucket, with the highest high and the lowest low
+ * of those bars (their exact prices and scales) and the bucket start as its time, like the bars of a MetaTrader
+ * export. Buckets are wall-clock periods in the zone of {@link FractalsDotProduct#dateTimeFormatter}: hours are
+ * counted from midnight, days start at midnight and weeks on Sunday, as in MetaTrader. A bucket holds the bars that
+ * exist, so gaps (weekends, holidays) produce no bars and the newest bar may still be forming.
+ * <p>
+ * Every bucket of a timeframe lies within one bucket of each longer timeframe, so {@link #resample(BarSeries, List)}
+ * builds each timeframe from the previous, shorter one: one pass over the columns per timeframe, and passes over
+ * fewer bars for the long ones. {@code -Dtimeframes} (e.g. {@code H4,D1,W1}; none by default) adds these timeframes of
+ * every price file to a run, reported as {@code <file>.<timeframe>}; they have to be {@link #coarser} than the bars
+ * of every file, so a run fails on a file exported in one of them or a longer one instead of reporting a copy.
+ */
+final class Resampler {
+
+    static final List<Timeframe> timeframes = Timeframe.list(System.getProperty("timeframes", ""));
+
+    private Resampler() {
+    }
+
+    enum Timeframe {
+        M15(15 * 60), M30(30 * 60), H1(60 * 60), H4(4 * 60 * 60), D1(24 * 60 * 60), W1(7 * 24 * 60 * 60);
+
+        private final int seconds;
+
+        Timeframe(int seconds) {
+            this.seconds = seconds;
+        }
+
+        /**
+         * The start of the bucket of {@code dateTime}.
+         */
+        LocalDateTime start(LocalDateTime dateTime) {
+            return switch (this) {
+                case D1 -> dateTime.toLocalDate().atStartOfDay();
+                case W1 -> dateTime.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.SUNDAY)).atStartOfDay();
+                default -> {
+                    LocalDate date = dateTime.toLocalDate();
+                    int secondOfDay = dateTime.toLocalTime().toSecondOfDay();
+                    yield date.atStartOfDay().plusSeconds(secondOfDay - secondOfDay % seconds);
+                }
+            };
+        }
+
+        static List<Timeframe> list(String names) {
+            return Arrays.stream(names.split(","))
+                    .map(String::trim)
+                    .filter(name -> !name.isEmpty())
+                    .map(name -> {
+                        try {
+                            return valueOf(name);
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("Unknown timeframe: %s, expected one of %s".formatted(name, Arrays.toString(values())), e);
+                        }
+                    })
+                    .distinct()
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * The price file a timeframe of {@code file} is reported as.
+     */
+    static File file(File file, Timeframe timeframe) {
+        return new File(file.getParentFile(), "%s.%s".formatted(file.getName(), timeframe));
+    }
+
+    /**
+     * Every timeframe of {@code timeframes}, each built from the previous one.
+     *
+     * @throws IllegalArgumentException if one of them is not {@link #coarser} than {@code bars}
+     */
+    static Map<Timeframe, BarSeries> resample(BarSeries bars, List<Timeframe> timeframes) {
+        for (Timeframe timeframe : timeframes) {
+            if (!coarser(timeframe, bars)) {
+                throw new IllegalArgumentException("Timeframe %s is not coarser than the bars it would be built from".formatted(timeframe));
+            }
+        }
+        Map<Timeframe, BarSeries> resampled = new EnumMap<>(Timeframe.class);
+        BarSeries previous = bars;
+        for (Timeframe timeframe : timeframes.stream().sorted().toList()) {
+            previous = resample(previous, timeframe);
+            resampled.put(timeframe, previous);
+        }
+        return resampled;
+    }
+
+    /**
+     * The bars of {@code timeframe} made of {@code bars}, oldest first like them.
+     */
+    static BarSeries resample(BarSeries bars, Timeframe timeframe) {
+        ZoneId zone = FractalsDotProduct.dateTimeFormatter.getZone();
+        int size = bars.size();
+        long[] epochSeconds = new long[size];
+        long[] highUnscaled = new long[size];
+        long[] lowUnscaled = new long[size];
+        byte[] highScales = new byte[size];
+        byte[] lowScales = new byte[size];
+        int count = 0;
+        long bucketEnd = Long.MIN_VALUE;
+        int high = -1;
+        int low = -1;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || bars.epochSeconds[i] >= bucketEnd) {
+                if (i > 0) {
+                    copy(bars, high, low, count - 1, highUnscaled, highScales, lowUnscaled, lowScales);
+                }
+                LocalDateTime start = timeframe.start(LocalDateTime.ofInstant(Instant.ofEpochSecond(bars.epochSeconds[i]), zone));
+                epochSeconds[count++] = start.atZone(zone).toEpochSecond();
+                bucketEnd = next(timeframe, start).atZone(zone).toEpochSecond();
+                high = i;
+                low = i;
+            } else {
+                if (bars.highs[i] > bars.highs[high]) {
+                    high = i;
+                }
+                if (bars.lows[i] < bars.lows[low]) {
+                    low = i;
+                }
+            }
+        }
+        if (size > 0) {
+            copy(bars, high, low, count - 1, highUnscaled, highScales, lowUnscaled, lowScales);
+        }
+        return new BarSeries(Arrays.copyOf(epochSeconds, count), Arrays.copyOf(highUnscaled, count), Arrays.copyOf(highScales, count),
+                Arrays.copyOf(lowUnscaled, count), Arrays.copyOf(lowScales, count));
+    }
+
+    /**
+     * Whether {@code timeframe} merges bars of {@code bars}, i.e. the bars are not already of this timeframe or a
+     * longer one: some bar does not open at the start of its bucket, and some two bars are closer than the timeframe.
+     * Series of fewer than two bars are taken as coarser than any timeframe.
+     */
+    static boolean coarser(Timeframe timeframe, BarSeries bars) {
+        if (bars.size() < 2) {
+            return true;
+        }
+        ZoneId zone = FractalsDotProduct.dateTimeFormatter.getZone();
+        boolean aligned = true;
+        boolean close = false;
+        for (int i = 0; i < bars.size() && (aligned || !close); i++) {
+            LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(bars.epochSeconds[i]), zone);
+            aligned &= timeframe.start(dateTime).equals(dateTime);
+            close |= i > 0 && bars.epochSeconds[i] - bars.epochSeconds[i - 1] < timeframe.seconds;
+        }
+        return !aligned && close;
+    }
+
+    private static LocalDateTime next(Timeframe timeframe, LocalDateTime start) {
+        return switch (timeframe) {
+            case D1 -> start.plusDays(1);
+            case W1 -> start.plusWeeks(1);
+            default -> start.plusSeconds(timeframe.seconds);
+        };
+    }
+
+    private static void copy(BarSeries bars, int high, int low, int bar, long[] highUnscaled, byte[] highScales, long[] lowUnscaled, byte[] lowScales) {
+        highUnscaled[bar] = bars.highUnscaled[high];
+        highScales[bar] = bars.highScales[high];
+        lowUnscaled[bar] = bars.lowUnscaled[low];
+        lowScales[bar] = bars.lowScales[low];
+    }
+}
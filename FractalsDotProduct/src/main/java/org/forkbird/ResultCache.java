@@ -0,0 +1,481 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.HighLow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Results of earlier runs, in a {@code results} directory of the {@code .fractals} directory next to the source (see
+ * {@link BarSeriesCache}); off unless {@code -DresultCache=true}.
+ * <p>
+ * Three kinds of entries are kept:
+ * <ul>
+ * <li>{@code <file>.changes}: the change series of the source with the SHA-256 of the content it was built from, plus
+ * the newest bars and fractal. When the source only gained bars at the end (the old content is a prefix of the new
+ * one), only the appended text is parsed and only the new fractals are detected; the change series of the old part
+ * is reused as it is. The entry records the fractal size and the zone the bar times were read in, and is not used by
+ * a run with another one.</li>
+ * <li>{@code <key>.results}: the results of one pattern size, keyed by the SHA-256 of the content hash and all
+ * parameters that change the results, including the {@link SimilarityMetric} and the zone. Patterns are stored as
+ * indexes into the change series.</li>
+ * <li>{@code <key>.<format>.<limit>.file}: the result file written for these results with its length and SHA-256,
+ * reused instead of writing another one while a file of that length and hash is still at its path.</li>
+ * </ul>
+ * Entries are touched when they are used; after every write the least recently used entries are deleted until the
+ * directory holds at most {@code -DresultCacheBytes} (256 MiB by default). Entries that cannot be read are ignored
+ * and written again.
+ */
+final class ResultCache {
+
+    private static final int seriesMagic = 0x46445253;
+    private static final int resultsMagic = 0x46445252;
+    private static final int version = 2;
+    private static final int noScale = Integer.MIN_VALUE;
+    static final String directoryName = "results";
+    static final boolean enabled = Boolean.parseBoolean(System.getProperty("resultCache", "false"));
+    static final long maxBytes = Long.getLong("resultCacheBytes", 256L << 20);
+
+    /**
+     * A change series entry: the source it was built from and what is needed to extend it.
+     *
+     * @param newestBars the last {@code fractalSize - 1} bars, newest first
+     * @param newestFractal the newest fractal, whose change is not known yet; null without fractals
+     */
+    private record Series(long sourceSize, byte[] contentHash, boolean endsWithNewline, int fractalSize,
+                          List<HighLow> newestBars, Fractal newestFractal, List<Fractal> changes) {
+    }
+
+    private final File file;
+    private final Path directory;
+    private final long size;
+    private final byte[] contentHash;
+    private final boolean endsWithNewline;
+    private final Series previous;
+    private final List<HighLow> highLows;
+    private final boolean tail;
+    private List<Fractal> changes;
+    private Map<Fractal, Integer> indexes;
+
+    private ResultCache(File file, Path directory, long size, byte[] contentHash, boolean endsWithNewline, Series previous, List<HighLow> highLows, boolean tail) {
+        this.file = file;
+        this.directory = directory;
+        this.size = size;
+        this.contentHash = contentHash;
+        this.endsWithNewline = endsWithNewline;
+        this.previous = previous;
+        this.highLows = highLows;
+        this.tail = tail;
+    }
+
+    /**
+     * Hashes {@code file} and reads what the change series needs: nothing when it is cached, the appended bars when
+     * the file only grew at the end, otherwise all bars through {@link FractalsDotProduct#load}.
+     */
+    static ResultCache open(File file) throws IOException {
+        return open(file, () -> FractalsDotProduct.load(file));
+    }
+
+    /**
+     * Like {@link #open(File)}, with {@code load} instead of {@link FractalsDotProduct#load} when all bars are needed,
+     * so a caller that has parsed the file already does not parse it again.
+     */
+    static ResultCache open(File file, StageMetrics.StageBody<List<HighLow>, IOException> load) throws IOException {
+        Path source = file.toPath();
+        Path directory = directory(source);
+        Series previous = readSeries(directory.resolve(file.getName() + ".changes"));
+        long size = Files.size(source);
+        long prefixSize = previous != null && previous.sourceSize <= size && previous.endsWithNewline ? previous.sourceSize : -1;
+        MessageDigest digest = sha256();
+        byte[] prefixHash = null;
+        int lastByte = -1;
+        long position = 0;
+        byte[] chunk = new byte[1 << 16];
+        try (InputStream input = Files.newInputStream(source)) {
+            for (int read = input.read(chunk); read >= 0; read = input.read(chunk)) {
+                if (prefixSize >= position && prefixSize < position + read) {
+                    digest.update(chunk, 0, (int) (prefixSize - position));
+                    prefixHash = clone(digest).digest();
+                    digest.update(chunk, (int) (prefixSize - position), read - (int) (prefixSize - position));
+                } else {
+                    digest.update(chunk, 0, read);
+                }
+                if (read > 0) {
+                    lastByte = chunk[read - 1];
+                }
+                position += read;
+            }
+        }
+        if (prefixSize == position) {
+            prefixHash = clone(digest).digest();
+        }
+        byte[] contentHash = digest.digest();
+        if (previous != null && previous.sourceSize == position && MessageDigest.isEqual(previous.contentHash, contentHash)) {
+            return new ResultCache(file, directory, position, contentHash, lastByte == '\n', previous, null, false);
+        }
+        if (prefixHash != null && MessageDigest.isEqual(previous.contentHash, prefixHash)) {
+            List<HighLow> appended = StageMetrics.measure("load", 0, position - prefixSize, () -> appended(source, prefixSize), List::size);
+            if (previous.newestBars.isEmpty() || appended.isEmpty()
+                    || appended.getLast().dateTime().isAfter(previous.newestBars.getFirst().dateTime())) {
+                return new ResultCache(file, directory, position, contentHash, lastByte == '\n', previous, appended, true);
+            }
+        }
+        return new ResultCache(file, directory, position, contentHash, lastByte == '\n', null, load.run(), false);
+    }
+
+    /**
+     * The change series of the file, newest first, equal to {@code valueDiff(fractals(load(file)))}.
+     */
+    List<Fractal> changes() {
+        if (changes != null) {
+            return changes;
+        }
+        if (highLows == null) {
+            changes = previous.changes;
+            touch(directory.resolve(file.getName() + ".changes"));
+            return changes;
+        }
+        List<HighLow> bars = tail ? Stream.concat(highLows.stream(), previous.newestBars.stream()).toList() : highLows;
+        List<Fractal> fractals = StageMetrics.measure("fractals", 0, bars.size(), () -> FractalsDotProduct.fractals(bars), List::size);
+        Fractal newestFractal = !fractals.isEmpty() ? fractals.getFirst() : tail ? previous.newestFractal : null;
+        if (tail) {
+            List<Fractal> joined = previous.newestFractal != null ? Stream.concat(fractals.stream(), Stream.of(previous.newestFractal)).toList() : fractals;
+            List<Fractal> appended = StageMetrics.measure("valueDiff", 0, joined.size(), () -> FractalsDotProduct.valueDiff(joined), List::size);
+            changes = Stream.concat(appended.stream(), previous.changes.stream()).toList();
+        } else {
+            changes = List.copyOf(StageMetrics.measure("valueDiff", 0, fractals.size(), () -> FractalsDotProduct.valueDiff(fractals), List::size));
+        }
+        List<HighLow> newestBars = List.copyOf(bars.subList(0, Math.min(bars.size(), FractalsDotProduct.fractalSize - 1)));
+        write(directory.resolve(file.getName() + ".changes"), output -> writeSeries(output,
+                new Series(size, contentHash, endsWithNewline, FractalsDotProduct.fractalSize, newestBars, newestFractal, changes)));
+        return changes;
+    }
+
+    /**
+     * The key of the results of one pattern size: the content hash and every parameter that changes the results.
+     */
+    String key(int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRation, boolean calculateAll) {
+        MessageDigest digest = sha256();
+        digest.update(contentHash);
+        digest.update(String.join(";", "v" + version, "patternSize=" + patternSize,
+                "minCosine=" + cosineMinValue.stripTrailingZeros().toPlainString(),
+                "minLengthRatio=" + minLengthRation.stripTrailingZeros().toPlainString(),
+                "calculateAll=" + calculateAll, "fractalSize=" + FractalsDotProduct.fractalSize,
+                "topK=" + FractalsDotProduct.topK, "topKPerBase=" + FractalsDotProduct.topKPerBase,
+                "metric=" + SimilarityMetric.selectedName(), "dtwBand=" + DtwMetric.band,
+                "zone=" + FractalsDotProduct.dateTimeFormatter.getZone().getId()).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * The cached results of {@code key}, otherwise the computed ones, which are cached.
+     */
+    List<CosineResult> results(String key, int patternSize, Supplier<List<CosineResult>> compute) {
+        Path entry = directory.resolve(key + ".results");
+        List<CosineResult> cached = readResults(entry, patternSize);
+        if (cached != null) {
+            touch(entry);
+            return cached;
+        }
+        List<CosineResult> results = compute.get();
+        int[][] rows = rows(results);
+        if (rows != null) {
+            write(entry, output -> writeResults(output, patternSize, results, rows));
+        }
+        return results;
+    }
+
+    /**
+     * The result file written earlier for the results of {@code key}, when it still has the length and content it was
+     * written with; otherwise the one {@code write} writes.
+     */
+    File resultFile(String key, long limit, StageMetrics.StageBody<File, IOException> write) throws IOException {
+        Path entry = directory.resolve("%s.%s.%d.file".formatted(key, ResultWriter.format, limit));
+        try {
+            List<String> lines = Files.readAllLines(entry);
+            File written = new File(lines.get(0));
+            if (lines.size() == 3 && written.isFile() && written.length() == Long.parseLong(lines.get(1))
+                    && HexFormat.of().formatHex(hash(written.toPath())).equals(lines.get(2))) {
+                touch(entry);
+                return written;
+            }
+        } catch (NoSuchFileException e) {
+            // not written yet
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Cannot read %s: %s%n", entry, e.getMessage());
+        }
+        File written = write.run();
+        String hash = HexFormat.of().formatHex(hash(written.toPath()));
+        this.write(entry, output -> output.write("%s\n%d\n%s\n".formatted(written.getAbsolutePath(), written.length(), hash).getBytes(StandardCharsets.UTF_8)));
+        return written;
+    }
+
+    static Path directory(Path source) {
+        return source.toAbsolutePath().resolveSibling(BarSeriesCache.directoryName).resolve(directoryName);
+    }
+
+    private static List<HighLow> appended(Path source, long from) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            return BarParser.parse(channel.position(from)).toHighLows();
+        }
+    }
+
+    private FractalsPattern pattern(int index, int patternSize) {
+        return new FractalsPattern(changes.subList(index, index + patternSize));
+    }
+
+    /**
+     * The indexes of the base, target, after base and after target pattern of every result (-1 for no pattern), or
+     * null when a pattern is not one of the change series.
+     */
+    private int[][] rows(List<CosineResult> results) {
+        if (indexes == null) {
+            indexes = new IdentityHashMap<>();
+            for (int i = 0; i < changes.size(); i++) {
+                indexes.put(changes.get(i), i);
+            }
+        }
+        int[][] rows = new int[results.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            CosineResult result = results.get(i);
+            rows[i] = new int[]{index(result.base()), index(result.target()), index(result.afterBase()), index(result.afterTarget())};
+            if (rows[i][0] < 0 || rows[i][1] < 0 || (result.afterBase() != null && rows[i][2] < 0) || (result.afterTarget() != null && rows[i][3] < 0)) {
+                return null;
+            }
+        }
+        return rows;
+    }
+
+    private int index(FractalsPattern pattern) {
+        return pattern != null && !pattern.fractals().isEmpty() ? indexes.getOrDefault(pattern.fractals().getFirst(), -1) : -1;
+    }
+
+    private void writeResults(DataOutputStream output, int patternSize, List<CosineResult> results, int[][] rows) throws IOException {
+        output.writeInt(resultsMagic);
+        output.writeInt(version);
+        output.writeInt(patternSize);
+        output.writeInt(changes.size());
+        output.writeInt(results.size());
+        for (int i = 0; i < rows.length; i++) {
+            for (int index : rows[i]) {
+                output.writeInt(index);
+            }
+            writeDecimal(output, results.get(i).cosine());
+            writeDecimal(output, results.get(i).lengthRatio());
+            writeDecimal(output, results.get(i).afterCosine());
+        }
+    }
+
+    private List<CosineResult> readResults(Path entry, int patternSize) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (input.readInt() != resultsMagic || input.readInt() != version || input.readInt() != patternSize || input.readInt() != changes.size()) {
+                return null;
+            }
+            int count = input.readInt();
+            List<CosineResult> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int base = input.readInt();
+                int target = input.readInt();
+                int afterBase = input.readInt();
+                int afterTarget = input.readInt();
+                results.add(new CosineResult(pattern(base, patternSize), pattern(target, patternSize), readDecimal(input), readDecimal(input),
+                        afterBase >= 0 ? pattern(afterBase, patternSize) : null,
+                        afterTarget >= 0 ? pattern(afterTarget, patternSize) : null,
+                        readDecimal(input)));
+            }
+            return List.copyOf(results);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Cannot read %s: %s%n", entry, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeSeries(DataOutputStream output, Series series) throws IOException {
+        output.writeInt(seriesMagic);
+        output.writeInt(version);
+        output.writeInt(series.fractalSize);
+        output.writeUTF(FractalsDotProduct.dateTimeFormatter.getZone().getId());
+        output.writeLong(series.sourceSize);
+        output.write(series.contentHash);
+        output.writeBoolean(series.endsWithNewline);
+        output.writeInt(series.newestBars.size());
+        for (HighLow highLow : series.newestBars) {
+            output.writeLong(highLow.dateTime().toEpochSecond());
+            writeDecimal(output, highLow.high());
+            writeDecimal(output, highLow.low());
+        }
+        output.writeBoolean(series.newestFractal != null);
+        if (series.newestFractal != null) {
+            writeFractal(output, series.newestFractal);
+        }
+        output.writeInt(series.changes.size());
+        for (Fractal fractal : series.changes) {
+            writeFractal(output, fractal);
+        }
+    }
+
+    private static Series readSeries(Path entry) {
+        ZoneId zone = FractalsDotProduct.dateTimeFormatter.getZone();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (input.readInt() != seriesMagic || input.readInt() != version || input.readInt() != FractalsDotProduct.fractalSize
+                    || !input.readUTF().equals(zone.getId())) {
+                return null;
+            }
+            long sourceSize = input.readLong();
+            byte[] contentHash = input.readNBytes(32);
+            boolean endsWithNewline = input.readBoolean();
+            int barCount = input.readInt();
+            List<HighLow> newestBars = new ArrayList<>(barCount);
+            for (int i = 0; i < barCount; i++) {
+                newestBars.add(new HighLow(Instant.ofEpochSecond(input.readLong()).atZone(zone), readDecimal(input), readDecimal(input)));
+            }
+            Fractal newestFractal = input.readBoolean() ? readFractal(input, zone) : null;
+            int count = input.readInt();
+            List<Fractal> changes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                changes.add(readFractal(input, zone));
+            }
+            return new Series(sourceSize, contentHash, endsWithNewline, FractalsDotProduct.fractalSize, List.copyOf(newestBars), newestFractal, List.copyOf(changes));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Cannot read %s: %s%n", entry, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeFractal(DataOutputStream output, Fractal fractal) throws IOException {
+        output.writeLong(fractal.dateTime().toEpochSecond());
+        writeDecimal(output, fractal.value());
+        writeDecimal(output, fractal.change());
+    }
+
+    private static Fractal readFractal(DataInputStream input, ZoneId zone) throws IOException {
+        return new Fractal(Instant.ofEpochSecond(input.readLong()).atZone(zone), readDecimal(input), readDecimal(input));
+    }
+
+    private static void writeDecimal(DataOutputStream output, BigDecimal value) throws IOException {
+        output.writeInt(value != null ? value.scale() : noScale);
+        output.writeLong(value != null ? value.unscaledValue().longValueExact() : 0);
+    }
+
+    private static BigDecimal readDecimal(DataInputStream input) throws IOException {
+        int scale = input.readInt();
+        long unscaled = input.readLong();
+        return scale != noScale ? BigDecimal.valueOf(unscaled, scale) : null;
+    }
+
+    private interface Content {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * Writes an entry through a temporary file, then evicts; a failure is reported and leaves the cache without it.
+     */
+    private void write(Path entry, Content content) {
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                content.write(output);
+            } catch (IOException | RuntimeException e) {
+                Files.delete(temporary);
+                throw e;
+            }
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict(directory, maxBytes);
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Cannot write %s: %s%n", entry, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the directory holds at most {@code maxBytes}.
+     */
+    static void evict(Path directory, long maxBytes) throws IOException {
+        record Entry(Path path, long size, FileTime used) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.filter(path -> !path.getFileName().toString().endsWith(".tmp")).toList()) {
+                try {
+                    entries.add(new Entry(path, Files.size(path), Files.getLastModifiedTime(path)));
+                } catch (NoSuchFileException e) {
+                    // evicted by another file of the directory
+                }
+            }
+        }
+        long total = entries.stream().mapToLong(Entry::size).sum();
+        entries.sort(Comparator.comparing(Entry::used));
+        for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+            Files.deleteIfExists(entries.get(i).path);
+            total -= entries.get(i).size;
+        }
+    }
+
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            // evicted meanwhile, written again next time
+        }
+    }
+
+    private static byte[] hash(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] chunk = new byte[1 << 16];
+        try (InputStream input = Files.newInputStream(path)) {
+            for (int read = input.read(chunk); read >= 0; read = input.read(chunk)) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest clone(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
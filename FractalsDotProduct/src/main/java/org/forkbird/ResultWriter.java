@@ -0,0 +1,221 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.forkbird.FractalsDotProduct.bigDecimalScale;
+import static org.forkbird.FractalsDotProduct.roundingMode;
+
+/**
+ * Writes the results of one pattern size of a file, in the format chosen with {@code -Dformat}:
+ * <ul>
+ *     <li>{@code csv} (default): the chart rows of every result whose target has a following pattern, then the sorted
+ *     linear regression slopes of the following target patterns. Every result is sorted and its slope computed once,
+ *     and the rows are streamed through a buffered writer, so the output is never held in memory.</li>
+ *     <li>{@code binary}: a compact columnar file for tools that read the numbers only, see {@link #writeBinary}.</li>
+ * </ul>
+ */
+final class ResultWriter {
+
+    enum Format {
+        csv, binary
+    }
+
+    static final Format format = Format.valueOf(System.getProperty("format", "csv"));
+
+    static final int binaryMagic = 0x46445052;
+    static final int binaryVersion = 1;
+    static final int missingInt = Integer.MIN_VALUE;
+    static final long missingLong = Long.MIN_VALUE;
+
+    private static final String chartHeader = "base_date;base_value;base_change;target_date;target_value;target_change\n";
+
+    private ResultWriter() {
+    }
+
+    /**
+     * Writes the first {@code limit} results to a new file next to {@code file} and returns it.
+     */
+    static File write(File file, String date, int patternSize, List<CosineResult> cosineResults, long limit) throws IOException {
+        File output = File.createTempFile("%s_%s_%s_".formatted(file.getName(), patternSize, date), "." + format, file.getParentFile());
+        switch (format) {
+            case csv -> {
+                try (Writer writer = Files.newBufferedWriter(output.toPath())) {
+                    writeCsv(cosineResults, limit, writer);
+                }
+            }
+            case binary -> {
+                try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(output.toPath()))) {
+                    writeBinary(cosineResults, patternSize, limit, stream);
+                }
+            }
+        }
+        return output;
+    }
+
+    /**
+     * The chart CSV of the first {@code limit} results that have a following target pattern.
+     */
+    static void writeCsv(List<CosineResult> cosineResults, long limit, Writer writer) throws IOException {
+        List<BigDecimal> slopes = new ArrayList<>();
+        for (CosineResult cosineResult : cosineResults) {
+            if (slopes.size() >= limit) {
+                break;
+            }
+            if (cosineResult.afterTarget() == null) {
+                continue;
+            }
+            CosineResult cr = cosineResult.sorted();
+            BigDecimal slope = cr.afterTarget().calculateLinearRegressionA();
+            slopes.add(slope);
+            writer.write("Cosine base X target:;");
+            writer.write(String.valueOf(cr.base().cosine(cr.target())));
+            writer.write(";after_target lrA:;");
+            writer.write(slope.toString());
+            writer.write('\n');
+            writer.write(chartHeader);
+            List<Fractal> base = cr.base().fractals();
+            List<Fractal> target = cr.target().fractals();
+            for (int i = 0; i < base.size(); i++) {
+                writeFractal(writer, base.get(i), true);
+                writer.write(';');
+                writeFractal(writer, target.get(i), true);
+                writer.write('\n');
+            }
+            List<Fractal> afterTarget = cr.afterTarget().fractals();
+            for (int i = 1; i < base.size(); i++) {
+                if (cr.afterBase() != null) {
+                    writeFractal(writer, cr.afterBase().fractals().get(i), false);
+                    writer.write(';');
+                } else {
+                    writer.write(";;;");
+                }
+                writeFractal(writer, afterTarget.get(i), true);
+                writer.write('\n');
+            }
+        }
+        slopes.sort(null);
+        for (BigDecimal slope : slopes) {
+            writer.write(slope.toString());
+            writer.write('\n');
+        }
+    }
+
+    private static void writeFractal(Writer writer, Fractal fractal, boolean withChange) throws IOException {
+        writer.write(fractal.dateTime().toString());
+        writer.write(';');
+        writer.write(fractal.value().toString());
+        writer.write(';');
+        if (withChange) {
+            writer.write(fractal.change().toString());
+        }
+    }
+
+    /**
+     * The first {@code limit} results as columns, all big-endian:
+     * <pre>
+     * int magic ("FDPR"), int version, int patternSize, int count
+     * long[count] first and long[count] last fractal of the base, then of the target, in epoch seconds
+     * int[count]  cosine, length ratio and after cosine, unscaled with scale 4
+     * long[count] linear regression slope of the following target pattern, unscaled with scale 4
+     * </pre>
+     * A missing following pattern is written as {@link #missingInt} or {@link #missingLong}.
+     */
+    static void writeBinary(List<CosineResult> cosineResults, int patternSize, long limit, OutputStream stream) throws IOException {
+        List<CosineResult> written = cosineResults.subList(0, (int) Math.min(limit, cosineResults.size()));
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeInt(binaryMagic);
+        output.writeInt(binaryVersion);
+        output.writeInt(patternSize);
+        output.writeInt(written.size());
+        for (CosineResult cr : written) {
+            output.writeLong(cr.base().fractals().getLast().dateTime().toEpochSecond());
+        }
+        for (CosineResult cr : written) {
+            output.writeLong(cr.base().fractals().getFirst().dateTime().toEpochSecond());
+        }
+        for (CosineResult cr : written) {
+            output.writeLong(cr.target().fractals().getLast().dateTime().toEpochSecond());
+        }
+        for (CosineResult cr : written) {
+            output.writeLong(cr.target().fractals().getFirst().dateTime().toEpochSecond());
+        }
+        for (CosineResult cr : written) {
+            output.writeInt(Math.toIntExact(unscaled(cr.cosine())));
+        }
+        for (CosineResult cr : written) {
+            output.writeInt(Math.toIntExact(unscaled(cr.lengthRatio())));
+        }
+        for (CosineResult cr : written) {
+            output.writeInt(cr.afterCosine() != null ? Math.toIntExact(unscaled(cr.afterCosine())) : missingInt);
+        }
+        for (CosineResult cr : written) {
+            FractalsPattern afterTarget = cr.afterTarget();
+            output.writeLong(afterTarget != null ? unscaled(afterTarget.sort().calculateLinearRegressionA()) : missingLong);
+        }
+        output.flush();
+    }
+
+    private static long unscaled(BigDecimal value) {
+        return value.setScale(bigDecimalScale, roundingMode).unscaledValue().longValueExact();
+    }
+
+    /**
+     * The columns written by {@link #writeBinary}; the values are still unscaled, see {@link #decimal}.
+     */
+    record BinaryResults(int patternSize, long[] baseFirst, long[] baseLast, long[] targetFirst, long[] targetLast,
+                         int[] cosines, int[] lengthRatios, int[] afterCosines, long[] afterTargetSlopes) {
+
+        static BinaryResults read(InputStream stream) throws IOException {
+            DataInputStream input = new DataInputStream(stream);
+            if (input.readInt() != binaryMagic) {
+                throw new IOException("Not a binary result file");
+            }
+            int version = input.readInt();
+            if (version != binaryVersion) {
+                throw new IOException("Unsupported binary result version: %d".formatted(version));
+            }
+            int patternSize = input.readInt();
+            int count = input.readInt();
+            return new BinaryResults(patternSize, readLongs(input, count), readLongs(input, count), readLongs(input, count), readLongs(input, count),
+                    readInts(input, count), readInts(input, count), readInts(input, count), readLongs(input, count));
+        }
+
+        private static long[] readLongs(DataInputStream input, int count) throws IOException {
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = input.readLong();
+            }
+            return values;
+        }
+
+        private static int[] readInts(DataInputStream input, int count) throws IOException {
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = input.readInt();
+            }
+            return values;
+        }
+
+        /**
+         * An unscaled column value as a decimal with scale 4, or {@code null} when it is missing.
+         */
+        static BigDecimal decimal(long unscaled) {
+            return unscaled == missingInt || unscaled == missingLong ? null : BigDecimal.valueOf(unscaled, bigDecimalScale);
+        }
+    }
+}
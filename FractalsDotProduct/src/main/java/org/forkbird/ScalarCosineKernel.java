@@ -0,0 +1,28 @@
+package org.forkbird;
+
+import java.util.Arrays;
+
+/**
+ * Plain loop over the dimension-major columns of {@link PatternVectors}; used when the Vector API is not available.
+ */
+final class ScalarCosineKernel implements CosineKernel {
+
+    @Override
+    public void cosines(PatternVectors vectors, int base, double[] cosines) {
+        int count = vectors.count();
+        double[] columns = vectors.columns();
+        double[] normSquares = vectors.normSquares();
+        Arrays.fill(cosines, 0, count, 0);
+        for (int j = 0; j < vectors.size(); j++) {
+            double baseChange = vectors.change(base, j);
+            int offset = j * count;
+            for (int t = 0; t < count; t++) {
+                cosines[t] += columns[offset + t] * baseChange;
+            }
+        }
+        double baseNormSquare = normSquares[base];
+        for (int t = 0; t < count; t++) {
+            cosines[t] = cosines[t] / Math.sqrt(baseNormSquare * normSquares[t]);
+        }
+    }
+}
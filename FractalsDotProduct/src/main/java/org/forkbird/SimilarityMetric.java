@@ -0,0 +1,139 @@
+package org.forkbird;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * A similarity of the patterns of one {@link PatternVectors}, chosen with {@code -Dmetric=cosine|pearson|euclidean|dtw}
+ * ({@code cosine} by default). Higher is more similar; the minimal cosine of a run is the minimal similarity of the
+ * chosen metric, and the results keep the similarity in their {@code cosine}. The following patterns are still
+ * compared by cosine, so the forecast success means the same for every metric.
+ * <p>
+ * A base is first bounded against all patterns at once. Only the targets whose upper bound, and length ratio, may
+ * reach the minimum get the full {@link #value}; the counts are recorded as the {@code bounds} stage of
+ * {@link StageMetrics}, whose summary shows the fraction pruned.
+ * <ul>
+ * <li>{@code cosine}: the bound is the double cosine of the {@link CosineKernel}, which is already the value.</li>
+ * <li>{@code pearson}: the cosine of the patterns with their mean change subtracted, scored the same way.</li>
+ * <li>{@code euclidean}: {@code 1 - |a - b| / (|a| + |b|)}, from 1 for equal patterns to 0 for opposite ones; bounded
+ * by the norms alone, since {@code |a - b| >= ||a| - |b||}.</li>
+ * <li>{@code dtw}: the same with the dynamic time warping distance, with changes matched at most {@code -DdtwBand}
+ * positions apart (1 by default); bounded by LB_Keogh.</li>
+ * </ul>
+ * Patterns for which a metric is not defined (zero norm) get negative infinity and never match, except with
+ * {@code cosine}, which behaves as before.
+ */
+interface SimilarityMetric {
+
+    List<String> names = List.of("cosine", "pearson", "euclidean", "dtw");
+
+    /**
+     * Upper bound of the similarity of {@code base} and {@code target}.
+     */
+    double upperBound(int base, int target);
+
+    /**
+     * Upper bounds of the similarity of {@code base} with every pattern, the same as {@link #upperBound}.
+     */
+    default void upperBounds(int base, double[] bounds) {
+        for (int t = 0; t < bounds.length; t++) {
+            bounds[t] = upperBound(base, t);
+        }
+    }
+
+    default double[] upperBounds(int base) {
+        double[] bounds = new double[count()];
+        upperBounds(base, bounds);
+        return bounds;
+    }
+
+    /**
+     * The similarity of {@code base} and {@code target}, given the upper bound computed for them; may stop early and
+     * return negative infinity once the value cannot reach {@code minValue}.
+     */
+    double value(int base, int target, double bound, double minValue);
+
+    /**
+     * {@code value} as reported: truncated to scale 4 like the cosine.
+     */
+    BigDecimal reported(int base, int target, double value);
+
+    int count();
+
+    static SimilarityMetric of(String name, PatternVectors vectors) {
+        return switch (name) {
+            case "cosine" -> new CosineMetric(vectors);
+            case "pearson" -> new PearsonMetric(vectors);
+            case "euclidean" -> new EuclideanMetric(vectors);
+            case "dtw" -> new DtwMetric(vectors, DtwMetric.band);
+            default -> throw unknown(name);
+        };
+    }
+
+    /**
+     * Fails like {@link #of} when {@code -Dmetric} is not one of {@link #names}, for the entry points to call before
+     * any work starts.
+     */
+    static void checkSelected() {
+        if (!names.contains(Selected.name)) {
+            throw unknown(Selected.name);
+        }
+    }
+
+    private static IllegalArgumentException unknown(String name) {
+        return new IllegalArgumentException("Unknown metric: %s".formatted(name));
+    }
+
+    /**
+     * The metric of {@code -Dmetric} for {@code vectors}.
+     */
+    static SimilarityMetric selected(PatternVectors vectors) {
+        return of(Selected.name, vectors);
+    }
+
+    static String selectedName() {
+        return Selected.name;
+    }
+
+    /**
+     * Whether {@code -Dmetric} is the cosine, which the regular run can score for all pattern sizes in one pass.
+     */
+    static boolean cosineSelected() {
+        return Selected.name.equals("cosine");
+    }
+
+    /**
+     * The name of the selected metric in reports.
+     */
+    static String label() {
+        return switch (Selected.name) {
+            case "pearson" -> "Pearson";
+            case "euclidean" -> "Euclidean";
+            case "dtw" -> "DTW";
+            default -> "Cosine";
+        };
+    }
+
+    /**
+     * {@code 1 - distance / normSum}, or negative infinity when both norms are zero.
+     */
+    static double fromDistance(double distance, double normSum) {
+        return normSum > 0 ? 1 - distance / normSum : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * The largest squared distance that may still give a similarity reaching {@code minValue} (see
+     * {@link PatternVectors#mayReach}), with some room for rounding.
+     */
+    static double maxDistanceSquare(double minValue, double normSum) {
+        double maxDistance = (1 - PatternVectors.reachLimit(minValue)) * normSum;
+        return maxDistance < 0 ? -1 : maxDistance * maxDistance * (1 + 1e-9);
+    }
+
+    final class Selected {
+        private static final String name = System.getProperty("metric", "cosine");
+
+        private Selected() {
+        }
+    }
+}
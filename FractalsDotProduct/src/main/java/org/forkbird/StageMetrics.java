@@ -0,0 +1,157 @@
+package org.forkbird;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.function.ToLongFunction;
+
+/**
+ * Wall time, item counts and allocation of the pipeline stages. Every measured stage emits a {@link StageEvent} JFR
+ * event ({@code org.forkbird.Stage}) and, when a file's metrics are bound to the current thread with
+ * {@link #within}, is added to the summary line printed after each pattern size of that file:
+ * <pre>
+ * stages file=HL_EURUSD.pro patternSize=8 load.ms=12.41 load.in=60000 load.out=60000 load.bytes=7340032 ...
+ *     total.ms=31.02
+ * </pre>
+ * {@code in} and {@code out} are the items entering and leaving a stage (lines and bars, bars and fractals, pairs
+ * scored and pairs passing the thresholds, ...). The {@code bounds} stage counts the candidates of the
+ * {@link SimilarityMetric} and those its bounds could not reject; {@code bounds.pruned} is the fraction rejected.
+ * Allocation is the JVM-wide delta during the stage, because the parallel streams allocate on pool threads; with
+ * several files in flight it includes their allocation too, so run with {@code -Dthreads=1} to attribute it exactly.
+ */
+final class StageMetrics {
+
+    @Name("org.forkbird.Stage")
+    @Label("Pipeline Stage")
+    @Category("FractalsDotProduct")
+    @Description("One stage of the pattern matching pipeline")
+    static final class StageEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Pattern Size")
+        int patternSize;
+
+        @Label("Input Items")
+        long inputItems;
+
+        @Label("Output Items")
+        long outputItems;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    record Stage(String name, int patternSize, long nanos, long inputItems, long outputItems, long allocatedBytes) {
+    }
+
+    @FunctionalInterface
+    interface StageBody<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private static final ThreadLocal<StageMetrics> current = new ThreadLocal<>();
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final String file;
+    private final List<Stage> stages = new ArrayList<>();
+
+    StageMetrics(String file) {
+        this.file = file;
+    }
+
+    static Optional<StageMetrics> current() {
+        return Optional.ofNullable(current.get());
+    }
+
+    /**
+     * Runs {@code body} with {@code metrics} collecting the stages measured on this thread.
+     */
+    static <T, E extends Exception> T within(StageMetrics metrics, StageBody<T, E> body) throws E {
+        StageMetrics previous = current.get();
+        current.set(metrics);
+        try {
+            return body.run();
+        } finally {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * Runs one stage and records it; {@code outputItems} counts the items in its result.
+     */
+    static <T, E extends Exception> T measure(String stage, int patternSize, long inputItems, StageBody<T, E> body, ToLongFunction<? super T> outputItems) throws E {
+        StageMetrics metrics = current.get();
+        StageEvent event = new StageEvent();
+        if (metrics == null && !event.isEnabled()) {
+            return body.run();
+        }
+        long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+        event.begin();
+        T result = body.run();
+        event.end();
+        long nanos = System.nanoTime() - start;
+        long allocatedBytes = allocatedBefore < 0 ? -1 : threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+        long output = outputItems.applyAsLong(result);
+        if (event.shouldCommit()) {
+            event.file = metrics != null ? metrics.file : null;
+            event.stage = stage;
+            event.patternSize = patternSize;
+            event.inputItems = inputItems;
+            event.outputItems = output;
+            event.allocatedBytes = allocatedBytes;
+            event.commit();
+        }
+        if (metrics != null) {
+            metrics.add(new Stage(stage, patternSize, nanos, inputItems, output, allocatedBytes));
+        }
+        return result;
+    }
+
+    /**
+     * Records counts collected inside another stage, e.g. the candidates of a {@link SimilarityMetric} and those left
+     * after its bounds; the time is part of the enclosing stage.
+     */
+    static void count(String stage, int patternSize, long inputItems, long outputItems) {
+        measure(stage, patternSize, inputItems, () -> outputItems, Long::longValue);
+    }
+
+    private synchronized void add(Stage stage) {
+        stages.add(stage);
+    }
+
+    /**
+     * The stages recorded since the previous call, as one {@code key=value} line.
+     */
+    synchronized String drainSummary(int patternSize) {
+        StringBuilder summary = new StringBuilder("stages file=").append(file).append(" patternSize=").append(patternSize);
+        long total = 0;
+        for (Stage stage : stages) {
+            summary.append(' ').append(stage.name).append(".ms=").append(String.format(Locale.ROOT, "%.2f", stage.nanos / 1e6))
+                    .append(' ').append(stage.name).append(".in=").append(stage.inputItems)
+                    .append(' ').append(stage.name).append(".out=").append(stage.outputItems)
+                    .append(' ').append(stage.name).append(".bytes=").append(stage.allocatedBytes);
+            if (stage.name.equals("bounds") && stage.inputItems > 0) {
+                summary.append(" bounds.pruned=").append(String.format(Locale.ROOT, "%.4f", 1 - (double) stage.outputItems / stage.inputItems));
+            }
+            total += stage.nanos;
+        }
+        stages.clear();
+        return summary.append(" total.ms=").append(String.format(Locale.ROOT, "%.2f", total / 1e6)).toString();
+    }
+}
@@ -0,0 +1,444 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.BoundCounts;
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.IndexedPatterns;
+import org.forkbird.FractalsDotProduct.ScoredPair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.stream.IntStream;
+
+import static org.forkbird.FractalsDotProduct.bigDecimalScale;
+
+/**
+ * All-pairs scoring in tiles with a bounded memory for the pairs that pass the thresholds, the engine of
+ * {@link FractalsDotProduct#calculateAllCosines} with {@code -DallPairs=tiled}.
+ * <p>
+ * The bases are split into tiles of {@code -DtileBytes} (256 KiB by default) of change vectors, and each base tile is
+ * scored against one target tile of the same size after the other, so both stay in the cache while every pair between
+ * them is bounded and scored; base tiles are scored in parallel. A pair that passes is kept as a single {@code long}
+ * whose natural order is {@link ScoredPair#bestFirst} (see {@link #key}); its length ratio is looked up again when it
+ * is read back. When more than {@code -DallPairsMemory} bytes (256 MiB by default) of keys are buffered, they are
+ * sorted and spilled as a run file to {@code -DspillDir} (the temporary directory by default). The runs and the rest
+ * of the buffer are merged in order into one more run, and with {@code topK} the merge stops after the first
+ * {@code topK} pairs.
+ * <p>
+ * The results are a list view of the sorted keys, the buffer or the merged run read back a block at a time, that builds
+ * each {@link CosineResult} (with the lookup of the following patterns) when it is read. Writing and reporting the
+ * results therefore take no more heap than the budget, however many pairs pass the thresholds; each read builds the
+ * result again. The merged run is opened with {@link StandardOpenOption#DELETE_ON_CLOSE}, so it is deleted with its
+ * channel once the results are unreachable, or at the latest when the JVM exits.
+ * <p>
+ * The bounds, values and reported values are those of {@link FractalsDotProduct#calculateAllCosines}, so the results
+ * are the same. Spilled keys and runs are recorded as the {@code spill} stage, the merge as the {@code merge} stage.
+ */
+final class TiledAllPairs {
+
+    static final boolean enabled = System.getProperty("allPairs", "streams").equals("tiled");
+    static final int tileBytes = Integer.getInteger("tileBytes", 256 * 1024);
+    static final long memoryBytes = Long.getLong("allPairsMemory", 256L * 1024 * 1024);
+    static final Path spillDir = Path.of(System.getProperty("spillDir", System.getProperty("java.io.tmpdir")));
+
+    private static final int indexBits = 24;
+    private static final long indexMask = (1L << indexBits) - 1;
+    private static final long maxUnits = 10_000;
+    private static final int flushKeys = 64 * 1024;
+    private static final int blockKeys = 8 * 1024;
+
+    private TiledAllPairs() {
+    }
+
+    static List<CosineResult> calculateAllCosines(IndexedPatterns indexedPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation, int topK, int topKPerBase) {
+        return calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRation, topK, topKPerBase, tileBytes, memoryBytes, spillDir);
+    }
+
+    static List<CosineResult> calculateAllCosines(IndexedPatterns indexedPatterns, BigDecimal cosineMinValue, BigDecimal minLengthRation, int topK, int topKPerBase, int tileBytes, long memoryBytes, Path spillDir) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        int count = vectors.count();
+        if (count > indexMask + 1) {
+            throw new IllegalArgumentException("Too many patterns for allPairs=tiled: %d".formatted(count));
+        }
+        int tile = Math.max(1, tileBytes / (Double.BYTES * Math.max(1, vectors.size())));
+        SimilarityMetric metric = SimilarityMetric.selected(vectors);
+        BoundCounts boundCounts = new BoundCounts();
+        try (Runs runs = new Runs(Math.max(1, memoryBytes / Long.BYTES), spillDir)) {
+            StageMetrics.measure("score", vectors.size(), (long) count * count,
+                    () -> IntStream.range(0, (count + tile - 1) / tile)
+                            .parallel()
+                            .mapToLong(baseTile -> scoreTile(indexedPatterns, metric, baseTile * tile, Math.min(count, (baseTile + 1) * tile), tile,
+                                    cosineMinValue, minLengthRation, topKPerBase, boundCounts, runs))
+                            .sum(),
+                    found -> found);
+            boundCounts.record(vectors.size());
+            StageMetrics.count("spill", vectors.size(), runs.spilled, runs.files.size());
+            long limit = topK > 0 ? topK : Long.MAX_VALUE;
+            Keys keys = StageMetrics.measure("merge", vectors.size(), runs.spilled + runs.size, () -> runs.merge(limit), Keys::size);
+            return new Results(indexedPatterns, keys);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Scores the bases {@code [from, to)} against every target tile and hands the keys of the passing pairs to
+     * {@code runs}; the number of keys.
+     */
+    private static long scoreTile(IndexedPatterns indexedPatterns, SimilarityMetric metric, int from, int to, int tile, BigDecimal cosineMinValue,
+                                  BigDecimal minLengthRation, int topKPerBase, BoundCounts boundCounts, Runs runs) {
+        PatternVectors vectors = indexedPatterns.vectors();
+        int count = vectors.count();
+        double minValue = cosineMinValue.doubleValue();
+        double minRatio = minLengthRation.doubleValue();
+        long[] keys = new long[flushKeys];
+        int found = 0;
+        long total = 0;
+        List<PriorityQueue<Long>> perBase = topKPerBase > 0
+                ? IntStream.range(from, to).mapToObj(base -> new PriorityQueue<Long>(Collections.reverseOrder())).toList()
+                : null;
+        long bounded = 0;
+        for (int targetFrom = 0; targetFrom < count; targetFrom += tile) {
+            int targetTo = Math.min(count, targetFrom + tile);
+            for (int base = from; base < to; base++) {
+                FractalsPattern basePattern = vectors.pattern(base);
+                for (int target = targetFrom; target < targetTo; target++) {
+                    double bound = metric.upperBound(base, target);
+                    if (!PatternVectors.mayReach(bound, minValue) || !PatternVectors.mayReach(vectors.lengthRatioValue(base, target), minRatio)) {
+                        continue;
+                    }
+                    bounded++;
+                    if (vectors.pattern(target).equals(basePattern)) {
+                        continue;
+                    }
+                    double value = metric.value(base, target, bound, minValue);
+                    if (!PatternVectors.mayReach(value, minValue)) {
+                        continue;
+                    }
+                    BigDecimal reported = metric.reported(base, target, value);
+                    if (reported.compareTo(cosineMinValue) < 0 || vectors.lengthRatio(base, target).compareTo(minLengthRation) < 0) {
+                        continue;
+                    }
+                    long key = key(reported, base, target);
+                    if (perBase != null) {
+                        PriorityQueue<Long> best = perBase.get(base - from);
+                        if (best.size() < topKPerBase) {
+                            best.add(key);
+                        } else if (key < best.peek()) {
+                            best.poll();
+                            best.add(key);
+                        }
+                        continue;
+                    }
+                    keys[found++] = key;
+                    if (found == keys.length) {
+                        runs.add(keys, found);
+                        total += found;
+                        found = 0;
+                    }
+                }
+            }
+        }
+        if (perBase != null) {
+            for (PriorityQueue<Long> best : perBase) {
+                for (long key : best) {
+                    keys[found++] = key;
+                    if (found == keys.length) {
+                        runs.add(keys, found);
+                        total += found;
+                        found = 0;
+                    }
+                }
+            }
+        }
+        runs.add(keys, found);
+        boundCounts.add((long) (to - from) * count, bounded);
+        return total + found;
+    }
+
+    /**
+     * A passing pair as a key that sorts like {@link ScoredPair#bestFirst}: from the highest bit, the reported value
+     * below its maximum in units of the last digit (15 bits, for values between -1 and 1), the base and the target (24
+     * bits each).
+     */
+    static long key(BigDecimal reported, int base, int target) {
+        long units = reported.setScale(bigDecimalScale).unscaledValue().longValueExact();
+        if (units < -maxUnits || units > maxUnits) {
+            throw new IllegalArgumentException("Value outside -1..1: %s".formatted(reported));
+        }
+        return (maxUnits - units) << 2 * indexBits | (long) base << indexBits | target;
+    }
+
+    static ScoredPair scoredPair(PatternVectors vectors, long key) {
+        int base = (int) (key >>> indexBits & indexMask);
+        int target = (int) (key & indexMask);
+        BigDecimal value = BigDecimal.valueOf(maxUnits - (key >>> 2 * indexBits), bigDecimalScale);
+        return new ScoredPair(base, target, value, vectors.lengthRatio(base, target));
+    }
+
+    /**
+     * The keys of all tiles: a buffer of at most {@code capacity} keys and the sorted run files spilled from it.
+     */
+    private static final class Runs implements AutoCloseable {
+
+        private final int capacity;
+        private final Path dir;
+        private final List<Path> files = new ArrayList<>();
+        private long[] buffer = new long[0];
+        private int size;
+        private long spilled;
+
+        Runs(long capacity, Path dir) {
+            this.capacity = (int) Math.min(capacity, Integer.MAX_VALUE - 8);
+            this.dir = dir;
+        }
+
+        synchronized void add(long[] keys, int length) {
+            int offset = 0;
+            while (offset < length) {
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(capacity, Math.max(flushKeys, 2L * buffer.length)));
+                }
+                int copied = Math.min(length - offset, buffer.length - size);
+                System.arraycopy(keys, offset, buffer, size, copied);
+                size += copied;
+                offset += copied;
+                if (size == capacity) {
+                    spill();
+                }
+            }
+        }
+
+        private void spill() {
+            Arrays.parallelSort(buffer, 0, size);
+            try {
+                Path file = Files.createTempFile(dir, "allpairs", ".run");
+                files.add(file);
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                    for (int i = 0; i < size; i++) {
+                        output.writeLong(buffer[i]);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            spilled += size;
+            size = 0;
+        }
+
+        /**
+         * The first {@code limit} keys of the buffer and all runs in ascending order: the buffer itself when nothing
+         * was spilled, otherwise a run merged from all of them, read back through the channel it was written to.
+         */
+        Keys merge(long limit) throws IOException {
+            Arrays.parallelSort(buffer, 0, size);
+            if (files.isEmpty()) {
+                return new MemoryKeys(buffer, (int) Math.min(size, limit));
+            }
+            FileChannel merged = FileChannel.open(Files.createTempFile(dir, "allpairs", ".merged"),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            long count = 0;
+            List<Cursor> cursors = new ArrayList<>();
+            try {
+                ByteBuffer output = ByteBuffer.allocate(blockKeys * Long.BYTES);
+                cursors.add(new Cursor(buffer, size));
+                for (Path file : files) {
+                    cursors.add(new Cursor(new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))));
+                }
+                PriorityQueue<Cursor> heads = new PriorityQueue<>((a, b) -> Long.compare(a.head, b.head));
+                for (Cursor cursor : cursors) {
+                    if (cursor.advance()) {
+                        heads.add(cursor);
+                    }
+                }
+                while (!heads.isEmpty() && count < limit) {
+                    Cursor cursor = heads.poll();
+                    if (!output.hasRemaining()) {
+                        write(merged, output);
+                    }
+                    output.putLong(cursor.head);
+                    count++;
+                    if (cursor.advance()) {
+                        heads.add(cursor);
+                    }
+                }
+                write(merged, output);
+                if (count > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many results for a list: %d, limit them with -DtopK or -DtopKPerBase".formatted(count));
+                }
+                return new FileKeys(merged, (int) count);
+            } catch (IOException | RuntimeException e) {
+                merged.close();
+                throw e;
+            } finally {
+                for (Cursor cursor : cursors) {
+                    cursor.close();
+                }
+            }
+        }
+
+        private static void write(FileChannel channel, ByteBuffer output) throws IOException {
+            output.flip();
+            while (output.hasRemaining()) {
+                channel.write(output);
+            }
+            output.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Sorted keys, read by index.
+     */
+    private interface Keys {
+
+        long get(int index);
+
+        int size();
+    }
+
+    private record MemoryKeys(long[] keys, int size) implements Keys {
+
+        @Override
+        public long get(int index) {
+            return keys[index];
+        }
+    }
+
+    /**
+     * Sorted keys in a run file, read through its channel {@code blockKeys} at a time, so iterating them reads the file
+     * once.
+     */
+    private static final class FileKeys implements Keys {
+
+        private final FileChannel channel;
+        private final int size;
+        private final ByteBuffer block = ByteBuffer.allocate(blockKeys * Long.BYTES);
+        private int blockStart = -1;
+
+        FileKeys(FileChannel channel, int size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public synchronized long get(int index) {
+            int start = index - index % blockKeys;
+            if (start != blockStart) {
+                block.clear().limit(Math.min(blockKeys, size - start) * Long.BYTES);
+                try {
+                    while (block.hasRemaining()) {
+                        if (channel.read(block, (long) start * Long.BYTES + block.position()) < 0) {
+                            throw new EOFException("Run ends before key %d of %d".formatted(index, size));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                blockStart = start;
+            }
+            return block.getLong((index - start) * Long.BYTES);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * The results of the keys, built when they are read.
+     */
+    private static final class Results extends AbstractList<CosineResult> implements RandomAccess {
+
+        private final IndexedPatterns indexedPatterns;
+        private final Keys keys;
+
+        Results(IndexedPatterns indexedPatterns, Keys keys) {
+            this.indexedPatterns = indexedPatterns;
+            this.keys = keys;
+        }
+
+        @Override
+        public CosineResult get(int index) {
+            Objects.checkIndex(index, keys.size());
+            return FractalsDotProduct.toCosineResult(indexedPatterns, scoredPair(indexedPatterns.vectors(), keys.get(index)));
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+    }
+
+    /**
+     * The next key of a sorted run, read from memory or from a run file.
+     */
+    private static final class Cursor {
+
+        private final long[] keys;
+        private final int length;
+        private final DataInputStream input;
+        private int position;
+        private long head;
+
+        Cursor(long[] keys, int length) {
+            this.keys = keys;
+            this.length = length;
+            this.input = null;
+        }
+
+        Cursor(DataInputStream input) {
+            this.keys = null;
+            this.length = 0;
+            this.input = input;
+        }
+
+        boolean advance() throws IOException {
+            if (input == null) {
+                if (position == length) {
+                    return false;
+                }
+                head = keys[position++];
+                return true;
+            }
+            try {
+                head = input.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+}
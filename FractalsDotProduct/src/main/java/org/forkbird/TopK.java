@@ -0,0 +1,55 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.ScoredPair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+
+/**
+ * Keeps only the {@code k} best {@link ScoredPair}s of a stream. Every thread of a parallel stream fills its own
+ * bounded heap and the heaps are merged when the threads are combined, so memory grows with {@code k} and not with the
+ * number of scored pairs.
+ * <p>
+ * Pairs are ranked by {@link ScoredPair#bestFirst}, which breaks cosine ties by encounter order, so the result is
+ * exactly the first {@code k} elements of the fully sorted stream. Outside a stream, pairs can be {@link #add}ed one
+ * by one and the current best read with {@link #toSortedList} at any time.
+ */
+final class TopK {
+
+    private final int k;
+    private final PriorityQueue<ScoredPair> heap;
+
+    TopK(int k) {
+        this.k = k;
+        this.heap = new PriorityQueue<>(ScoredPair.bestFirst.reversed());
+    }
+
+    static Collector<ScoredPair, ?, List<ScoredPair>> collector(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: %d".formatted(k));
+        }
+        return Collector.of(() -> new TopK(k), TopK::add, TopK::merge, TopK::toSortedList);
+    }
+
+    void add(ScoredPair scoredPair) {
+        if (heap.size() < k) {
+            heap.add(scoredPair);
+        } else if (ScoredPair.bestFirst.compare(scoredPair, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(scoredPair);
+        }
+    }
+
+    private TopK merge(TopK other) {
+        other.heap.forEach(this::add);
+        return this;
+    }
+
+    List<ScoredPair> toSortedList() {
+        List<ScoredPair> sorted = new ArrayList<>(heap);
+        sorted.sort(ScoredPair.bestFirst);
+        return sorted;
+    }
+}
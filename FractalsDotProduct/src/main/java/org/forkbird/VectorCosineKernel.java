@@ -0,0 +1,39 @@
+package org.forkbird;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link CosineKernel} on the incubating Vector API: every SIMD lane holds a different target pattern, so the short
+ * pattern length does not limit the vector width.
+ */
+final class VectorCosineKernel implements CosineKernel {
+
+    private static final VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void cosines(PatternVectors vectors, int base, double[] cosines) {
+        int count = vectors.count();
+        int size = vectors.size();
+        double[] columns = vectors.columns();
+        double[] normSquares = vectors.normSquares();
+        double baseNormSquare = normSquares[base];
+        int upperBound = species.loopBound(count);
+        int t = 0;
+        for (; t < upperBound; t += species.length()) {
+            DoubleVector dot = DoubleVector.zero(species);
+            for (int j = 0; j < size; j++) {
+                dot = dot.add(DoubleVector.fromArray(species, columns, j * count + t).mul(vectors.change(base, j)));
+            }
+            DoubleVector norms = DoubleVector.fromArray(species, normSquares, t).mul(baseNormSquare).sqrt();
+            dot.div(norms).intoArray(cosines, t);
+        }
+        for (; t < count; t++) {
+            double dot = 0;
+            for (int j = 0; j < size; j++) {
+                dot += columns[j * count + t] * vectors.change(base, j);
+            }
+            cosines[t] = dot / Math.sqrt(baseNormSquare * normSquares[t]);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import static org.forkbird.FractalsDotProduct.bigDecimalScale;
+import static org.forkbird.FractalsDotProduct.roundingMode;
+
+/**
+ * "Forecast success" of every past pattern, as if it had been the latest one, over a grid of pattern sizes, minimal
+ * cosines and minimal length ratios.
+ * <p>
+ * The pattern at index {@code a} of the change series (newest first) is an anchor: it is matched like the base of a
+ * regular run, and the pattern following it, which was not known yet at that time, tells whether the forecast held.
+ * Only data that existed at the anchor is used: a target counts only when the pattern following it ends no later than
+ * the anchor, i.e. {@code t >= a + patternSize - 1}. Like {@link FractalsDotProduct#forecastSuccess}, a match is a hit
+ * when the cosine of the two following patterns is above {@code minAfterCosine}, and the forecast success is the ratio
+ * of hits to misses; the grid adds the counts and the hit rate.
+ * <p>
+ * Scoring every anchor against its whole history is cubic. Here the changes, which have scale 4, are taken as exact
+ * integers, and for every lag {@code d = t - a} one running sum of {@code change[m] * change[m + d]} gives the dot
+ * products of all pairs with that lag, for every pattern size, and of their following patterns, which have the same
+ * lag. One pass over the pairs therefore covers all anchors, sizes and thresholds; the lags run in parallel. Values
+ * too close to a truncation boundary are computed exactly, so the thresholds apply to the same reported values as in a
+ * regular run. Patterns whose changes are all zero have no direction and are skipped.
+ */
+final class WalkForwardBacktest {
+
+    record Cell(int patternSize, BigDecimal minCosine, BigDecimal minLengthRatio, long matches, long hits, long misses) {
+
+        /**
+         * Ratio of hits to misses, as printed for a regular run; empty without misses.
+         */
+        Optional<BigDecimal> forecastSuccess() {
+            return misses > 0 ? Optional.of(BigDecimal.valueOf(hits).divide(BigDecimal.valueOf(misses), bigDecimalScale, roundingMode)) : Optional.empty();
+        }
+
+        double hitRate() {
+            return matches > 0 ? (double) hits / matches : Double.NaN;
+        }
+    }
+
+    private final List<Fractal> changes;
+    private final long[] units;
+    private final long[] squares;
+    private final int minPatternSize;
+    private final int maxPatternSize;
+    private final List<BigDecimal> minCosines;
+    private final List<BigDecimal> minLengthRatios;
+    private final long[] minCosineUnits;
+    private final long[] minRatioUnits;
+    private final long minAfterCosineUnits;
+    private final int cells;
+
+    private WalkForwardBacktest(List<Fractal> changes, int minPatternSize, int maxPatternSize, List<BigDecimal> minCosines, List<BigDecimal> minLengthRatios) {
+        this.changes = List.copyOf(changes);
+        this.units = this.changes.stream()
+                .mapToLong(fractal -> fractal.change().setScale(bigDecimalScale).unscaledValue().longValueExact())
+                .toArray();
+        long maxUnits = Arrays.stream(units).map(Math::abs).max().orElse(0);
+        if (maxUnits > 0 && maxUnits > Math.sqrt((double) Long.MAX_VALUE / (units.length + 1))) {
+            throw new IllegalArgumentException("Changes too large for exact sums: %d".formatted(maxUnits));
+        }
+        this.squares = new long[units.length + 1];
+        for (int i = 0; i < units.length; i++) {
+            squares[i + 1] = squares[i] + units[i] * units[i];
+        }
+        this.minPatternSize = minPatternSize;
+        this.maxPatternSize = maxPatternSize;
+        this.minCosines = minCosines.stream().sorted().distinct().toList();
+        this.minLengthRatios = minLengthRatios.stream().sorted().distinct().toList();
+        this.minCosineUnits = thresholdUnits(this.minCosines);
+        this.minRatioUnits = thresholdUnits(this.minLengthRatios);
+        this.minAfterCosineUnits = FractalsDotProduct.minAfterCosine.movePointRight(bigDecimalScale).setScale(0, RoundingMode.FLOOR).longValueExact();
+        this.cells = (this.minCosines.size() + 2) * (this.minLengthRatios.size() + 2);
+    }
+
+    /**
+     * The grid of all sizes from {@code minPatternSize} to {@code maxPatternSize} and all combinations of the
+     * thresholds, ordered by size, minimal cosine and minimal length ratio.
+     *
+     * @param changes the change series, newest first, as returned by {@link FractalsDotProduct#valueDiff}
+     */
+    static List<Cell> run(List<Fractal> changes, int minPatternSize, int maxPatternSize, List<BigDecimal> minCosines, List<BigDecimal> minLengthRatios) {
+        if (minPatternSize < 1 || maxPatternSize < minPatternSize) {
+            throw new IllegalArgumentException("Invalid pattern sizes: %d..%d".formatted(minPatternSize, maxPatternSize));
+        }
+        if (minCosines.isEmpty() || minLengthRatios.isEmpty()) {
+            throw new IllegalArgumentException("No thresholds to test");
+        }
+        WalkForwardBacktest backtest = new WalkForwardBacktest(changes, minPatternSize, maxPatternSize, minCosines, minLengthRatios);
+        return StageMetrics.measure("backtest", maxPatternSize, changes.size(), backtest::run, List::size);
+    }
+
+    private List<Cell> run() {
+        int count = units.length;
+        long[] buckets = IntStream.range(1, count)
+                .parallel()
+                .collect(() -> new Counts(count), this::lag, Counts::add)
+                .buckets;
+        List<Cell> grid = new ArrayList<>();
+        for (int size = minPatternSize; size <= maxPatternSize; size++) {
+            long[] hits = atLeast(buckets, size, 0);
+            long[] misses = atLeast(buckets, size, 1);
+            for (int c = 1; c <= minCosines.size(); c++) {
+                for (int r = 1; r <= minLengthRatios.size(); r++) {
+                    int cell = cell(c, r);
+                    grid.add(new Cell(size, minCosines.get(c - 1), minLengthRatios.get(r - 1), hits[cell] + misses[cell], hits[cell], misses[cell]));
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Hit and miss counts per size and highest passed thresholds, plus the running sum of the current lag.
+     */
+    private final class Counts {
+
+        final long[] buckets = new long[(maxPatternSize - minPatternSize + 1) * cells * 2];
+        final long[] diagonal;
+
+        Counts(int count) {
+            this.diagonal = new long[count + 1];
+        }
+
+        void add(Counts other) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+    }
+
+    /**
+     * Scores all anchor/target pairs {@code lag} patterns apart.
+     */
+    private void lag(Counts counts, int lag) {
+        long[] diagonal = counts.diagonal;
+        int length = units.length - lag;
+        for (int m = 0; m < length; m++) {
+            diagonal[m + 1] = diagonal[m] + units[m] * units[m + lag];
+        }
+        double minCosine = minCosines.getFirst().doubleValue();
+        double minRatio = minLengthRatios.getFirst().doubleValue();
+        for (int size = minPatternSize; size <= Math.min(maxPatternSize, lag + 1); size++) {
+            for (int anchor = size - 1; anchor + lag + size <= units.length; anchor++) {
+                score(counts, anchor, anchor + lag, size, minCosine, minRatio);
+            }
+        }
+    }
+
+    private void score(Counts counts, int anchor, int target, int size, double minCosine, double minRatio) {
+        long anchorNorm = squares[anchor + size] - squares[anchor];
+        long targetNorm = squares[target + size] - squares[target];
+        if (anchorNorm == 0 || targetNorm == 0) {
+            return;
+        }
+        double ratioValue = anchorNorm > targetNorm ? Math.sqrt((double) targetNorm / anchorNorm) : Math.sqrt((double) anchorNorm / targetNorm);
+        if (!PatternVectors.mayReach(ratioValue, minRatio)) {
+            return;
+        }
+        long[] diagonal = counts.diagonal;
+        double cosineValue = (diagonal[anchor + size] - diagonal[anchor]) / Math.sqrt((double) anchorNorm * targetNorm);
+        if (!PatternVectors.mayReach(cosineValue, minCosine)) {
+            return;
+        }
+        int c = passed(minCosineUnits, PatternVectors.toReportedUnits(cosineValue, () -> pattern(anchor, size).cosine(pattern(target, size))));
+        int r = passed(minRatioUnits, PatternVectors.toReportedUnits(ratioValue, () -> pattern(anchor, size).lengthRatio(pattern(target, size))));
+        if (c == 0 || r == 0) {
+            return;
+        }
+        int afterAnchor = anchor - size + 1;
+        int afterTarget = target - size + 1;
+        long afterAnchorNorm = squares[afterAnchor + size] - squares[afterAnchor];
+        long afterTargetNorm = squares[afterTarget + size] - squares[afterTarget];
+        boolean hit = afterAnchorNorm != 0 && afterTargetNorm != 0 && PatternVectors.toReportedUnits(
+                (diagonal[afterAnchor + size] - diagonal[afterAnchor]) / Math.sqrt((double) afterAnchorNorm * afterTargetNorm),
+                () -> pattern(afterAnchor, size).cosine(pattern(afterTarget, size))) > minAfterCosineUnits;
+        counts.buckets[((size - minPatternSize) * cells + cell(c, r)) * 2 + (hit ? 0 : 1)]++;
+    }
+
+    private FractalsPattern pattern(int index, int size) {
+        return new FractalsPattern(changes.subList(index, index + size));
+    }
+
+    private int cell(int c, int r) {
+        return c * (minLengthRatios.size() + 2) + r;
+    }
+
+    /**
+     * Counts of one size and kind that pass each pair of thresholds: the sum of all buckets with at least as high
+     * thresholds passed.
+     */
+    private long[] atLeast(long[] buckets, int size, int kind) {
+        long[] sums = new long[cells];
+        for (int c = minCosines.size(); c >= 1; c--) {
+            for (int r = minLengthRatios.size(); r >= 1; r--) {
+                sums[cell(c, r)] = buckets[((size - minPatternSize) * cells + cell(c, r)) * 2 + kind]
+                        + sums[cell(c + 1, r)] + sums[cell(c, r + 1)] - sums[cell(c + 1, r + 1)];
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Number of the ascending thresholds a reported value reaches.
+     */
+    private static int passed(long[] thresholdUnits, long valueUnits) {
+        int passed = 0;
+        while (passed < thresholdUnits.length && valueUnits >= thresholdUnits[passed]) {
+            passed++;
+        }
+        return passed;
+    }
+
+    /**
+     * The smallest reported values, in units of the last digit, that reach the thresholds.
+     */
+    private static long[] thresholdUnits(List<BigDecimal> thresholds) {
+        return thresholds.stream()
+                .mapToLong(threshold -> threshold.movePointRight(bigDecimalScale).setScale(0, RoundingMode.CEILING).longValueExact())
+                .toArray();
+    }
+
+    private static List<BigDecimal> decimals(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).map(BigDecimal::new).toList();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            throw new IllegalArgumentException("syntax: file minPatternSize maxPatternSize minCosines minLengthRatios (thresholds comma separated)");
+        }
+        List<Fractal> changes = FractalsDotProduct.valueDiff(FractalsDotProduct.fractals(FractalsDotProduct.load(new File(args[0]))));
+        List<Cell> grid = run(changes, Integer.parseInt(args[1]), Integer.parseInt(args[2]), decimals(args[3]), decimals(args[4]));
+        System.out.println("patternSize;minCosine;minLengthRatio;matches;hits;misses;forecastSuccess;hitRate");
+        for (Cell cell : grid) {
+            System.out.printf(Locale.ROOT, "%d;%s;%s;%d;%d;%d;%s;%.4f%n", cell.patternSize, cell.minCosine, cell.minLengthRatio,
+                    cell.matches, cell.hits, cell.misses, cell.forecastSuccess().map(BigDecimal::toString).orElse(""), cell.hitRate());
+        }
+    }
+}
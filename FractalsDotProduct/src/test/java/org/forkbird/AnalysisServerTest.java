@@ -0,0 +1,129 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class AnalysisServerTest {
+
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.5");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.2");
+
+    @TempDir
+    Path dir;
+
+    private AnalysisServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new AnalysisServer(dir.toFile(), 0, cosineMinValue, minLengthRatio);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void scoresLatestPatternAndPicksUpAppendedBars() throws IOException, InterruptedException {
+        List<String> bars = TestBars.lines(3_000);
+        File file = Files.write(dir.resolve("HL_TEST.pro"), bars.subList(0, 2_000)).toFile();
+
+        HttpResponse<String> first = get("/score?symbol=TEST&size=4&limit=2");
+        List<CosineResult> expected = processFile(file, 4, cosineMinValue, minLengthRatio, false);
+
+        assertThat(first.statusCode()).isEqualTo(200);
+        assertThat(first.body()).isEqualTo(AnalysisServer.toJson("TEST", 4, expected, 2)).contains("\"matches\":%d".formatted(expected.size()));
+
+        Files.write(file.toPath(), bars.subList(2_000, 3_000), StandardOpenOption.APPEND);
+
+        assertThat(get("/score?symbol=TEST&size=4").body())
+                .isEqualTo(AnalysisServer.toJson("TEST", 4, processFile(file, 4, cosineMinValue, minLengthRatio, false), Integer.MAX_VALUE));
+    }
+
+    @Test
+    void allPairsCarryForecastSuccess() throws IOException, InterruptedException {
+        File file = Files.write(dir.resolve("TEST.pro"), TestBars.lines(1_500)).toFile();
+        List<CosineResult> expected = processFile(file, 4, new BigDecimal("0.9"), new BigDecimal("0.8"), true);
+
+        HttpResponse<String> response = get("/score?symbol=TEST&size=4&all=true&minCosine=0.9&minLengthRatio=0.8&limit=1");
+
+        assertThat(forecastSuccess(expected)).isPresent();
+        assertThat(response.body())
+                .isEqualTo(AnalysisServer.toJson("TEST", 4, expected, 1))
+                .contains("\"forecastSuccess\":%s".formatted(forecastSuccess(expected).orElseThrow()));
+    }
+
+    @Test
+    void allPairsAreScoredOncePerVersionOfTheFile() throws IOException {
+        List<String> bars = TestBars.lines(2_000);
+        File file = Files.write(dir.resolve("TEST.pro"), bars.subList(0, 1_500)).toFile();
+
+        List<CosineResult> first = server.score(file, 4, new BigDecimal("0.9"), new BigDecimal("0.8"), true);
+
+        assertThat(server.score(file, 4, new BigDecimal("0.90"), new BigDecimal("0.8"), true)).isSameAs(first);
+        assertThat(server.score(file, 4, new BigDecimal("0.8"), new BigDecimal("0.8"), true)).isNotSameAs(first);
+
+        Files.write(file.toPath(), bars.subList(1_500, 2_000), StandardOpenOption.APPEND);
+
+        assertThat(server.score(file, 4, new BigDecimal("0.9"), new BigDecimal("0.8"), true))
+                .isNotSameAs(first)
+                .isEqualTo(processFile(file, 4, new BigDecimal("0.9"), new BigDecimal("0.8"), true));
+    }
+
+    @Test
+    void annRequestsScoreTheCandidatesOfTheIndexOfTheCurrentVersion() throws IOException, InterruptedException {
+        List<String> bars = TestBars.lines(3_000);
+        File file = Files.write(dir.resolve("TEST.pro"), bars.subList(0, 2_000)).toFile();
+
+        HttpResponse<String> response = get("/score?symbol=TEST&size=4&ann=true");
+
+        assertThat(response.statusCode()).isEqualTo(200);
+        assertThat(response.body()).isEqualTo(AnalysisServer.toJson("TEST", 4, approximate(file, 4, cosineMinValue, minLengthRatio), Integer.MAX_VALUE));
+        assertThat(server.score(file, 4, new BigDecimal("0.8"), minLengthRatio, false, true))
+                .isEqualTo(approximate(file, 4, new BigDecimal("0.8"), minLengthRatio))
+                .isSubsetOf(processFile(file, 4, new BigDecimal("0.8"), minLengthRatio, false))
+                .isNotEmpty();
+
+        Files.write(file.toPath(), bars.subList(2_000, 3_000), StandardOpenOption.APPEND);
+
+        assertThat(server.score(file, 4, cosineMinValue, minLengthRatio, false, true)).isEqualTo(approximate(file, 4, cosineMinValue, minLengthRatio));
+        assertThat(get("/score?symbol=TEST&size=4&ann=true&all=true").statusCode()).isEqualTo(400);
+    }
+
+    @Test
+    void rejectsInvalidRequests() throws IOException, InterruptedException {
+        Files.write(dir.resolve("TEST.pro"), TestBars.lines(100));
+
+        assertThat(get("/score?symbol=MISSING&size=4").statusCode()).isEqualTo(404);
+        assertThat(get("/score?symbol=../TEST&size=4").statusCode()).isEqualTo(400);
+        assertThat(get("/score?symbol=TEST&size=x").statusCode()).isEqualTo(400);
+        assertThat(get("/score?symbol=TEST").statusCode()).isEqualTo(400);
+    }
+
+    private static List<CosineResult> approximate(File file, int patternSize, BigDecimal cosineMinValue, BigDecimal minLengthRatio) throws IOException {
+        IndexedPatterns indexedPatterns = IndexedPatterns.of(fractalsPatterns(TestBars.changes(file), patternSize));
+        return calculateCosines(indexedPatterns, 0, cosineMinValue, minLengthRatio, LshIndex.of(indexedPatterns.vectors()));
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create("http://localhost:%d%s".formatted(server.port(), path))).build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
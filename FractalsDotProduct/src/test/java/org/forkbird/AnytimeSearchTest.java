@@ -0,0 +1,124 @@
+package org.forkbird;
+
+import org.forkbird.AnytimeSearch.Snapshot;
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forkbird.FractalsDotProduct.*;
+
+class AnytimeSearchTest {
+
+    private static final File file = new File("EURUSD.pro");
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.5");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.5");
+
+    @ParameterizedTest
+    @ValueSource(strings = {"recent", "index"})
+    void completeSearchesReportTheFullRun(String order) {
+        List<Fractal> changes = changes(20_000);
+        List<CosineResult> expected = score(changes, 4, cosineMinValue, minLengthRatio, false);
+
+        AnytimeSearch search = AnytimeSearch.of(file, changes, 4, cosineMinValue, minLengthRatio, 10, false, order);
+        Snapshot snapshot = AnytimeSearch.run(List.of(search), System.nanoTime() + 60_000_000_000L, s -> {
+        }).getFirst();
+
+        assertThat(snapshot.complete()).isTrue();
+        assertThat(snapshot.coverage()).isEqualTo(1);
+        assertThat(snapshot.matches()).isEqualTo(expected.size());
+        assertThat(snapshot.results()).containsExactlyElementsOf(expected.subList(0, 10));
+    }
+
+    @Test
+    void completeAllPairsSearchesReportTheFullRun() {
+        List<Fractal> changes = changes(1_500);
+        List<CosineResult> expected = score(changes, 3, cosineMinValue, minLengthRatio, true);
+
+        AnytimeSearch search = AnytimeSearch.of(file, changes, 3, cosineMinValue, minLengthRatio, 25, true, "recent");
+        while (search.step()) {
+        }
+        Snapshot snapshot = search.snapshot();
+
+        assertThat(snapshot.complete()).isTrue();
+        assertThat(snapshot.matches()).isEqualTo(expected.size());
+        assertThat(snapshot.results()).containsExactlyElementsOf(expected.subList(0, 25));
+        assertThat(snapshot.forecastSuccess()).isEqualTo(forecastSuccess(expected)).isPresent();
+    }
+
+    @Test
+    void snapshotsImproveWithEveryStep() {
+        List<Fractal> changes = changes(1_500);
+        AnytimeSearch search = AnytimeSearch.of(file, changes, 3, cosineMinValue, minLengthRatio, 5, true, "recent");
+        List<Snapshot> snapshots = new ArrayList<>();
+        while (search.step()) {
+            snapshots.add(search.snapshot());
+        }
+        snapshots.add(search.snapshot());
+
+        for (int i = 1; i < snapshots.size(); i++) {
+            Snapshot previous = snapshots.get(i - 1);
+            Snapshot current = snapshots.get(i);
+            assertThat(current.scored()).isGreaterThan(previous.scored());
+            assertThat(current.matches()).isGreaterThanOrEqualTo(previous.matches());
+            if (!previous.results().isEmpty()) {
+                assertThat(current.results().getLast().cosine()).isGreaterThanOrEqualTo(previous.results().getLast().cosine());
+            }
+        }
+        assertThat(snapshots.getFirst().complete()).isFalse();
+        assertThat(snapshots.getLast().complete()).isTrue();
+    }
+
+    @Test
+    void stopsAtTheDeadline() {
+        List<Fractal> changes = changes(1_500);
+        List<AnytimeSearch> searches = List.of(
+                AnytimeSearch.of(file, changes, 3, cosineMinValue, minLengthRatio, 5, true, "recent"),
+                AnytimeSearch.of(new File("GBPUSD.pro"), changes, 4, cosineMinValue, minLengthRatio, 5, false, "recent"));
+        List<Snapshot> published = new ArrayList<>();
+
+        List<Snapshot> snapshots = AnytimeSearch.run(searches, System.nanoTime(), published::add);
+
+        assertThat(snapshots).extracting(Snapshot::scored).containsExactly(0L, 0L);
+        assertThat(snapshots).extracting(Snapshot::coverage).containsExactly(0.0, 0.0);
+        assertThat(snapshots).noneMatch(Snapshot::complete);
+        assertThat(published).containsExactlyElementsOf(snapshots);
+        assertThat(snapshots.getFirst().progress()).startsWith("anytime EURUSD.pro patternSize=3 coverage=0.0000");
+    }
+
+    @Test
+    void loadsASearchOnlyWhenTheDeadlineAllows() {
+        CompletableFuture<List<Fractal>> pending = new CompletableFuture<>();
+        List<AnytimeSearch> searches = List.of(
+                AnytimeSearch.of(file, CompletableFuture.completedFuture(changes(1_500)), 3, cosineMinValue, minLengthRatio, 5, false),
+                AnytimeSearch.of(new File("GBPUSD.pro"), pending, 3, cosineMinValue, minLengthRatio, 5, false));
+
+        List<Snapshot> snapshots = AnytimeSearch.run(searches, System.nanoTime() + 500_000_000L, s -> {
+        });
+
+        assertThat(snapshots.getFirst().candidates()).isPositive();
+        assertThat(snapshots.getLast().candidates()).isEqualTo(-1);
+        assertThat(snapshots.getLast().complete()).isFalse();
+        assertThat(snapshots.getLast().coverage()).isZero();
+        assertThat(snapshots.getLast().progress()).contains("scored=0/- ");
+    }
+
+    @Test
+    void rejectsUnknownOrders() {
+        assertThatThrownBy(() -> AnytimeSearch.of(file, changes(500), 3, cosineMinValue, minLengthRatio, 5, false, "oldest"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static List<Fractal> changes(int bars) {
+        return List.copyOf(TestBars.changes(TestBars.lines(bars)));
+    }
+}
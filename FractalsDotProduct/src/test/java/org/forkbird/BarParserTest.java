@@ -0,0 +1,101 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class BarParserTest {
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"/fractals.csv", "/fractalsPatterns.csv"})
+    void parsesLikeToHighLows(String resource) throws IOException {
+        File file = new File(getClass().getResource(resource).getFile());
+
+        assertThat(BarParser.parse(file).toHighLows()).isEqualTo(parse(file.toPath()));
+    }
+
+    @Test
+    void parsesAscendingDescendingAndUnorderedInput() throws IOException {
+        List<String> ascending = TestBars.lines(5_000);
+        List<String> descending = new ArrayList<>(ascending.reversed());
+        List<String> shuffled = new ArrayList<>(ascending);
+        Collections.shuffle(shuffled, new Random(3));
+        shuffled.add(shuffled.get(10).replaceFirst(",[^,]*,", ",2.00000,"));
+
+        for (List<String> lines : List.of(ascending, descending, shuffled)) {
+            Path file = Files.write(dir.resolve("bars.csv"), lines);
+
+            assertThat(BarParser.parse(file.toFile()).toHighLows()).isEqualTo(parse(file));
+        }
+    }
+
+    @Test
+    void toleratesWhitespaceCarriageReturnsAndOtherNotations() throws IOException {
+        Path file = dir.resolve("bars.csv");
+        Files.writeString(file, """
+                2024.01.01 00:00:00, 1.10010 ,  1.10000\r
+                  2024.01.01 01:00:00 ,1.1002,1.1\r
+                2024.01.01 02:00:00,+1.1003,11.0E-1,extra\r
+                2024.01.01 03:00:00,-.5,-1""");
+
+        assertThat(BarParser.parse(file.toFile()).toHighLows()).isEqualTo(parse(file));
+    }
+
+    @Test
+    void rejectsMalformedLines() throws IOException {
+        Path missingField = Files.writeString(dir.resolve("missing.csv"), "2024.01.01 00:00:00,1.1\n");
+        Path badNumber = Files.writeString(dir.resolve("number.csv"), "2024.01.01 00:00:00,1.1.1,1.0\n");
+        Path badDate = Files.writeString(dir.resolve("date.csv"), "2024.01.01 25:00:00,1.1,1.0\n");
+        Path yearZero = Files.writeString(dir.resolve("year.csv"), "0000.01.01 00:00:00,1.1,1.0\n");
+
+        assertThatThrownBy(() -> BarParser.parse(missingField.toFile())).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BarParser.parse(badNumber.toFile())).isInstanceOf(NumberFormatException.class);
+        assertThatThrownBy(() -> BarParser.parse(badDate.toFile())).isInstanceOf(DateTimeParseException.class);
+        assertThatThrownBy(() -> BarParser.parse(yearZero.toFile())).isInstanceOf(DateTimeParseException.class);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"Europe/Warsaw", "America/New_York", "Australia/Lord_Howe", "UTC"})
+    void resolvesOffsetsAcrossTransitions(String zoneId) {
+        ZoneId zone = ZoneId.of(zoneId);
+        BarParser parser = new BarParser(zone);
+        LocalDateTime start = LocalDateTime.of(2023, 1, 1, 0, 0);
+
+        for (int minutes = 0; minutes < 2 * 366 * 24 * 60; minutes += 15) {
+            LocalDateTime local = start.plusMinutes(minutes);
+
+            assertThat(parser.toEpochSecond(local.toEpochSecond(ZoneOffset.UTC)))
+                    .as(local.toString())
+                    .isEqualTo(ZonedDateTime.of(local, zone).toEpochSecond());
+        }
+    }
+
+    private static List<HighLow> parse(Path file) throws IOException {
+        try (Stream<String> lines = Files.lines(file)) {
+            return toHighLows(lines);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class BarSeriesCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void cachedBarsEqualParsedBars() throws IOException {
+        File file = copy("/fractalsPatterns.csv");
+
+        List<HighLow> written = BarSeriesCache.load(file).toHighLows();
+        List<HighLow> cached = BarSeriesCache.load(file).toHighLows();
+
+        assertThat(BarSeriesCache.cacheFile(file.toPath())).exists();
+        assertThat(cached).isEqualTo(written).isEqualTo(parse(file));
+    }
+
+    @Test
+    void changedContentInvalidatesCache() throws IOException {
+        File file = copy("/fractalsPatterns.csv");
+        BarSeriesCache.load(file);
+        FileTime modified = Files.getLastModifiedTime(file.toPath());
+
+        Files.writeString(file.toPath(), Files.readString(file.toPath()).replace("1.60654", "1.60655"));
+        Files.setLastModifiedTime(file.toPath(), modified);
+        assertThat(BarSeriesCache.load(file).toHighLows()).isEqualTo(parse(file));
+
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(modified.toMillis() + 60_000));
+        assertThat(BarSeriesCache.load(file).toHighLows()).isEqualTo(parse(file));
+        assertThat(parse(file)).anyMatch(highLow -> highLow.high().equals(new BigDecimal("1.60655")));
+    }
+
+    @Test
+    void otherZoneInvalidatesCache() throws IOException {
+        File file = copy("/fractalsPatterns.csv");
+        ZoneId warsaw = ZoneId.of("Europe/Warsaw");
+        ZoneId newYork = ZoneId.of("America/New_York");
+        BarSeriesCache.load(file, warsaw);
+
+        assertThat(BarSeriesCache.load(file, newYork).epochSeconds)
+                .isEqualTo(BarParser.parse(file, newYork).epochSeconds)
+                .isNotEqualTo(BarParser.parse(file, warsaw).epochSeconds);
+        assertThat(BarSeriesCache.load(file, warsaw).epochSeconds).isEqualTo(BarParser.parse(file, warsaw).epochSeconds);
+    }
+
+    @Test
+    void cachedBarsMatchTextPipeline() throws IOException {
+        File file = copy("/fractalsPatterns.csv");
+        BarSeriesCache.load(file);
+
+        try (Stream<String> lines = Files.lines(file.toPath())) {
+            assertThat(FractalsDotProduct.process(BarSeriesCache.load(file).toHighLows(), 2, new BigDecimal("-1"), BigDecimal.ZERO, false))
+                    .isEqualTo(FractalsDotProduct.process(lines, 2, new BigDecimal("-1"), BigDecimal.ZERO, false));
+        }
+    }
+
+    private File copy(String resource) throws IOException {
+        Path target = dir.resolve("EURUSD.pro");
+        try (var input = getClass().getResourceAsStream(resource)) {
+            Files.copy(input, target);
+        }
+        return target.toFile();
+    }
+
+    private static List<HighLow> parse(File file) throws IOException {
+        try (Stream<String> lines = Files.lines(file.toPath())) {
+            return toHighLows(lines);
+        }
+    }
+}
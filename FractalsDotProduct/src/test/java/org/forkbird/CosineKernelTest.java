@@ -0,0 +1,35 @@
+package org.forkbird;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.forkbird.FractalsDotProduct.Fractal;
+import static org.forkbird.FractalsDotProduct.FractalsPattern;
+
+public class CosineKernelTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"scalar", "vector"})
+    void matchesPairwiseCosine(String kernel) {
+        Random random = new Random(3);
+        List<FractalsPattern> patterns = IntStream.range(0, 103)
+                .mapToObj(i -> new FractalsPattern(IntStream.range(0, 7)
+                        .mapToObj(j -> new Fractal(null, null, BigDecimal.valueOf(random.nextInt(-2000, 2000), 4)))
+                        .toList()))
+                .toList();
+        PatternVectors vectors = PatternVectors.of(patterns);
+
+        for (int base = 0; base < patterns.size(); base += 17) {
+            double[] cosines = CosineKernel.of(kernel).cosines(vectors, base);
+            for (int target = 0; target < patterns.size(); target++) {
+                assertThat(cosines[target]).isEqualTo(vectors.cosineValue(base, target));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DirectorySchedulerTest {
+
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.9");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.8");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void printsReportsInFileOrderLikeSequentialRun() throws IOException {
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(Files.write(dir.resolve("HL_%d.pro".formatted(i)), TestBars.lines(i * 1_500)).toFile());
+        }
+
+        ByteArrayOutputStream scheduled = new ByteArrayOutputStream();
+        boolean scheduledWritten;
+        try (DirectoryScheduler scheduler = new DirectoryScheduler(3)) {
+            Map<File, CompletableFuture<PatternSizeSweep>> sweeps = scheduler.load(files, 4, 6, cosineMinValue, minLengthRatio, false);
+            scheduledWritten = scheduler.process(sweeps, 6, 5, false, new PrintStream(scheduled)) | scheduler.process(sweeps, 5, 5, false, new PrintStream(scheduled));
+        }
+
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        boolean sequentialWritten = false;
+        for (int patternSize = 6; patternSize >= 5; patternSize--) {
+            for (File file : files) {
+                PatternSizeSweep sweep = PatternSizeSweep.of(file, 4, 6, cosineMinValue, minLengthRatio, false);
+                sequentialWritten |= FractalsDotProduct.processOneFile(file, sweep, patternSize, 5, false, new PrintStream(sequential, true));
+            }
+        }
+
+        assertThat(scheduledWritten).isEqualTo(sequentialWritten).isTrue();
+        assertThat(withoutTempNames(scheduled)).isEqualTo(withoutTempNames(sequential)).contains("HL_4.pro", "Cosine: ");
+    }
+
+    @Test
+    void reportsOverTheBufferLimitMoveToATemporaryFile() throws IOException {
+        Path spill = Files.createDirectories(dir.resolve("spill"));
+        String report = "Cosine: 0.9500\n".repeat(1_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (DirectoryScheduler.ReportBuffer buffer = new DirectoryScheduler.ReportBuffer(4_096, spill)) {
+            PrintStream fileOut = new PrintStream(buffer);
+            fileOut.print(report);
+            fileOut.flush();
+            try (var files = Files.list(spill)) {
+                assertThat(files).hasSize(1);
+            }
+            buffer.transferTo(out);
+        }
+
+        assertThat(out.toString()).isEqualTo(report);
+        try (var files = Files.list(spill)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void deletesTheTemporaryReportsWhenAFileFails() throws IOException {
+        Path spill = Files.createDirectories(dir.resolve("spill"));
+        File failing = dir.resolve("HL_1.pro").toFile();
+        File large = Files.write(dir.resolve("HL_2.pro"), TestBars.lines(3_000)).toFile();
+
+        try (DirectoryScheduler scheduler = new DirectoryScheduler(2, 64, spill)) {
+            Map<File, CompletableFuture<PatternSizeSweep>> sweeps = new LinkedHashMap<>();
+            sweeps.put(failing, CompletableFuture.failedFuture(new UncheckedIOException(new IOException("Cannot read " + failing))));
+            sweeps.putAll(scheduler.load(List.of(large), 5, 5, cosineMinValue, minLengthRatio, false));
+
+            assertThatThrownBy(() -> scheduler.process(sweeps, 5, 5, false, new PrintStream(new ByteArrayOutputStream())))
+                    .hasRootCauseMessage("Cannot read " + failing);
+        }
+
+        try (var files = Files.list(spill)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    private static String withoutTempNames(ByteArrayOutputStream output) {
+        return output.toString().replaceAll("_\\d+\\.csv", ".csv");
+    }
+}
@@ -0,0 +1,115 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.HighLow;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FractalDetectorTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {3, 5, 7, 9, 11})
+    void findsTheFractalsOfEveryWindow(int width) {
+        List<HighLow> highLows = bars(new Random(width), 5_000);
+
+        assertThat(FractalDetector.fractals(highLows, width)).containsExactlyElementsOf(everyWindow(highLows, width));
+    }
+
+    @Test
+    void pricesWithDifferentScalesCompareByValue() {
+        List<HighLow> highLows = new ArrayList<>(List.of(
+                bar(0, "1.1", "1.0"),
+                bar(1, "1.10", "1.00"),
+                bar(2, "1.2", "0.90"),
+                bar(3, "1.20", "0.9"),
+                bar(4, "1.100", "1.000")).reversed());
+
+        assertThat(FractalDetector.fractals(highLows, 3)).isEmpty();
+
+        highLows.set(1, bar(3, "1.19", "0.91"));
+        assertThat(FractalDetector.fractals(highLows, 3)).containsExactly(new Fractal(highLows.get(2).dateTime(), new BigDecimal("1.2"), null));
+    }
+
+    @Test
+    void confirmsAFractalHalfTheWidthAfterItsMiddleBar() {
+        FractalDetector detector = new FractalDetector(7);
+        List<Fractal> confirmed = new ArrayList<>();
+        String[] highs = {"1.0", "1.1", "1.2", "1.5", "1.2", "1.1", "1.0", "1.0"};
+        for (int i = 0; i < highs.length; i++) {
+            Fractal fractal = detector.add(bar(i, highs[i], "0.5"));
+            if (fractal != null) {
+                assertThat(i).isEqualTo(6);
+                confirmed.add(fractal);
+            }
+        }
+
+        assertThat(confirmed).containsExactly(new Fractal(time(3), new BigDecimal("1.5"), null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {-1, 0, 1, 2, 4, 6})
+    void rejectsEvenAndTooNarrowWidths(int width) {
+        assertThatThrownBy(() -> new FractalDetector(width)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * The rule of every window checked on its own, like the original 5-bar {@code toFractal}.
+     */
+    private static List<Fractal> everyWindow(List<HighLow> highLows, int width) {
+        List<Fractal> fractals = new ArrayList<>();
+        int half = width / 2;
+        for (int middle = half; middle < highLows.size() - half; middle++) {
+            HighLow middleHL = highLows.get(middle);
+            boolean up = true;
+            boolean down = true;
+            for (int i = middle - half; i <= middle + half; i++) {
+                if (i != middle) {
+                    up &= highLows.get(i).high().compareTo(middleHL.high()) < 0;
+                    down &= highLows.get(i).low().compareTo(middleHL.low()) > 0;
+                }
+            }
+            if (up) {
+                fractals.add(new Fractal(middleHL.dateTime(), middleHL.high(), null));
+            } else if (down) {
+                fractals.add(new Fractal(middleHL.dateTime(), middleHL.low(), null));
+            }
+        }
+        return fractals;
+    }
+
+    /**
+     * A random walk on a coarse grid, so equal highs and lows are common, with some prices written with an extra zero.
+     */
+    private static List<HighLow> bars(Random random, int count) {
+        List<HighLow> highLows = new ArrayList<>();
+        int price = 10_000;
+        for (int i = 0; i < count; i++) {
+            price += random.nextInt(-3, 4);
+            BigDecimal high = BigDecimal.valueOf(price + random.nextInt(0, 3), 4);
+            BigDecimal low = BigDecimal.valueOf(price - random.nextInt(0, 3), 4);
+            highLows.add(new HighLow(time(i),
+                    random.nextInt(10) == 0 ? high.setScale(5) : high,
+                    random.nextInt(10) == 0 ? low.setScale(5) : low));
+        }
+        return highLows.reversed();
+    }
+
+    private static HighLow bar(int hour, String high, String low) {
+        return new HighLow(time(hour), new BigDecimal(high), new BigDecimal(low));
+    }
+
+    private static ZonedDateTime time(int hour) {
+        return ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).plusHours(hour);
+    }
+}
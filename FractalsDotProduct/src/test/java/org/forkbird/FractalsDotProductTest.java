@@ -71,6 +71,16 @@ public class FractalsDotProductTest {
         }
     }
 
+    @Test
+    void successorIndex() throws URISyntaxException, IOException {
+        try (Stream<String> lines = Files.lines(file("/fractalsPatterns.csv").toPath())) {
+            List<FractalsPattern> fractalsPatterns = FractalsDotProduct.fractalsPatterns(FractalsDotProduct.valueDiff(FractalsDotProduct.fractals(toHighLows(lines))), 2);
+
+            assertThat(FractalsDotProduct.successorIndex(fractalsPatterns)).containsExactly(-1, 0);
+            assertThat(IndexedPatterns.of(fractalsPatterns).following(1)).isEqualTo(fractalsPatterns.get(0));
+        }
+    }
+
     @ParameterizedTest
     @ValueSource(ints = {1, 2, 3, 4, 5})
     void fractalsPattern(int patternSize) throws URISyntaxException, IOException {
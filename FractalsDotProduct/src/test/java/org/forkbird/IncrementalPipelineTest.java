@@ -0,0 +1,163 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class IncrementalPipelineTest {
+
+    private static final DateTimeFormatter lineFormatter = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void appendedBarsMatchFullRecompute() throws IOException {
+        List<String> lines = TestBars.lines(600);
+        File file = dir.resolve("EURUSD.pro").toFile();
+        Files.write(file.toPath(), lines.subList(0, 400));
+        IncrementalPipeline pipeline = new IncrementalPipeline(file);
+        assertThat(pipeline.poll()).isEqualTo(400);
+
+        for (int end = 400; end < 600; end += 25) {
+            Files.write(file.toPath(), lines.subList(end, end + 25), StandardOpenOption.APPEND);
+
+            assertThat(pipeline.poll()).isEqualTo(25);
+            assertThat(pipeline.scoreLatest(4, new BigDecimal("0.5"), new BigDecimal("0.2")))
+                    .isEqualTo(FractalsDotProduct.processFile(file, 4, new BigDecimal("0.5"), new BigDecimal("0.2"), false));
+        }
+        assertThat(pipeline.reloads()).isZero();
+    }
+
+    @Test
+    void quietBarsAfterALongVolatileHistoryMatchFullRecompute() throws IOException {
+        List<String> lines = unevenBars(60_000, 2_000);
+        File file = dir.resolve("EURUSD.pro").toFile();
+        Files.write(file.toPath(), lines.subList(0, 61_000));
+        IncrementalPipeline pipeline = new IncrementalPipeline(file);
+        pipeline.poll();
+
+        for (int end = 61_000; end < 62_000; end += 250) {
+            Files.write(file.toPath(), lines.subList(end, end + 250), StandardOpenOption.APPEND);
+            pipeline.poll();
+            assertThat(pipeline.scoreLatest(4, new BigDecimal("0.5"), new BigDecimal("0.2")))
+                    .isNotEmpty()
+                    .isEqualTo(FractalsDotProduct.processFile(file, 4, new BigDecimal("0.5"), new BigDecimal("0.2"), false));
+        }
+    }
+
+    @Test
+    void incompleteLineIsReadOnNextPoll() throws IOException {
+        List<String> lines = TestBars.lines(100);
+        File file = dir.resolve("EURUSD.pro").toFile();
+        Files.writeString(file.toPath(), String.join("\n", lines.subList(0, 50)) + "\n" + lines.get(50).substring(0, 10));
+        IncrementalPipeline pipeline = new IncrementalPipeline(file);
+        pipeline.poll();
+
+        Files.writeString(file.toPath(), lines.get(50).substring(10) + "\n", StandardOpenOption.APPEND);
+
+        assertThat(pipeline.poll()).isEqualTo(1);
+        assertThat(pipeline.changes()).isEqualTo(TestBars.changes(lines.subList(0, 51)));
+    }
+
+    @Test
+    void rewrittenFileIsReloaded() throws IOException {
+        List<String> lines = TestBars.lines(200);
+        File file = dir.resolve("HL_EURUSD").toFile();
+        Files.write(file.toPath(), lines.subList(0, 150));
+        IncrementalPipeline pipeline = new IncrementalPipeline(file);
+        pipeline.poll();
+
+        List<String> newestFirst = new ArrayList<>(lines);
+        Collections.reverse(newestFirst);
+        Files.write(file.toPath(), newestFirst);
+
+        assertThat(pipeline.poll()).isEqualTo(-1);
+        assertThat(pipeline.reloads()).isEqualTo(1);
+        assertThat(pipeline.changes()).isEqualTo(TestBars.changes(lines));
+    }
+
+    @Test
+    void rewrittenNewestFirstFileIsDiffedAgainstThePreviousHead() throws IOException {
+        List<String> lines = TestBars.lines(300);
+        File file = dir.resolve("HL_EURUSD").toFile();
+        Files.write(file.toPath(), export(lines.subList(0, 200), true));
+        IncrementalPipeline pipeline = new IncrementalPipeline(file);
+        assertThat(pipeline.poll()).isEqualTo(-1);
+
+        for (int end = 200; end < 300; end += 20) {
+            Files.write(file.toPath(), export(lines.subList(0, end + 20), true));
+
+            assertThat(pipeline.poll()).isEqualTo(20);
+            assertThat(pipeline.changes()).isEqualTo(TestBars.changes(file));
+            assertThat(pipeline.scoreLatest(4, new BigDecimal("0.5"), new BigDecimal("0.2")))
+                    .isEqualTo(FractalsDotProduct.processFile(file, 4, new BigDecimal("0.5"), new BigDecimal("0.2"), false));
+        }
+        assertThat(pipeline.poll()).isZero();
+
+        Files.write(file.toPath(), export(lines, false));
+        assertThat(pipeline.poll()).isZero();
+        assertThat(pipeline.changes()).isEqualTo(TestBars.changes(lines));
+        assertThat(pipeline.reloads()).isEqualTo(1);
+
+        List<String> revised = new ArrayList<>(lines);
+        revised.set(298, forming(lines.get(298)));
+        Files.write(file.toPath(), export(revised, false));
+        assertThat(pipeline.poll()).isEqualTo(-1);
+        assertThat(pipeline.reloads()).isEqualTo(2);
+        assertThat(pipeline.changes()).isEqualTo(TestBars.changes(revised));
+    }
+
+    /**
+     * {@code lines} newest first like the {@code HL_} export, optionally with the newest bar still forming.
+     */
+    private static List<String> export(List<String> lines, boolean forming) {
+        List<String> newestFirst = new ArrayList<>(lines);
+        if (forming) {
+            newestFirst.set(newestFirst.size() - 1, forming(newestFirst.getLast()));
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    /**
+     * The bar of {@code line} with a high and a low far out of the range of the others.
+     */
+    private static String forming(String line) {
+        return line.substring(0, line.indexOf(',')) + ",9.99999,0.00001";
+    }
+
+    /**
+     * Hourly bars that jump around 1.1 by about 30% for {@code volatileCount} bars and then walk by about 0.01% per
+     * bar, so the old changes are about a thousand times larger than the new ones.
+     */
+    private static List<String> unevenBars(int volatileCount, int quietCount) {
+        Random random = new Random(7);
+        LocalDateTime start = LocalDateTime.of(2010, 1, 1, 0, 0);
+        List<String> lines = new ArrayList<>();
+        double price = 1.1;
+        for (int i = 0; i < volatileCount + quietCount; i++) {
+            double deviation = i < volatileCount ? 0.3 : 0.0001;
+            price = i < volatileCount ? 1.1 * Math.exp(random.nextGaussian() * deviation) : price * Math.exp(random.nextGaussian() * deviation);
+            double high = price * (1 + random.nextDouble() * deviation / 2);
+            double low = price * (1 - random.nextDouble() * deviation / 2);
+            lines.add("%s,%.5f,%.5f".formatted(start.plusHours(i).format(lineFormatter), high, low));
+        }
+        return lines;
+    }
+}
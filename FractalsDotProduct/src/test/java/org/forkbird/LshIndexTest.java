@@ -0,0 +1,43 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class LshIndexTest {
+
+    @Test
+    void defaultSettingsLoseNoMatches() {
+        IndexedPatterns indexedPatterns = IndexedPatterns.of(FractalsDotProduct.fractalsPatterns(randomFractals(3000), 6));
+        LshIndex index = LshIndex.of(indexedPatterns.vectors());
+
+        LshIndex.RecallReport report = index.recall(indexedPatterns, new BigDecimal("0.9"), new BigDecimal("0.5"), 10);
+
+        assertThat(report.exactMatches()).isPositive();
+        assertThat(report.recall()).isEqualTo(1.0);
+        assertThat(report.scannedFraction()).isLessThan(0.5);
+    }
+
+    @Test
+    void candidatesContainBase() {
+        IndexedPatterns indexedPatterns = IndexedPatterns.of(FractalsDotProduct.fractalsPatterns(randomFractals(200), 4));
+        LshIndex index = LshIndex.of(indexedPatterns.vectors(), 4, 8, 0, 1);
+
+        assertThat(index.candidates(17)).contains(17).isSorted();
+    }
+
+    private static List<Fractal> randomFractals(int count) {
+        Random random = new Random(11);
+        ZonedDateTime start = ZonedDateTime.parse("2024.01.01 00:00:00", dateTimeFormatter);
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Fractal(start.minusHours(i), BigDecimal.ONE, BigDecimal.valueOf(random.nextInt(1, 200) * (random.nextBoolean() ? 1 : -1), 4)))
+                .toList();
+    }
+}
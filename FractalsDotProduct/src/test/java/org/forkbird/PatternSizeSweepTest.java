@@ -0,0 +1,52 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class PatternSizeSweepTest {
+
+    @ParameterizedTest
+    @CsvSource({"0.5, 0.2, false", "0.9, 0.8, false", "-1, 0, false", "0.8, 0.5, true"})
+    void everySizeMatchesProcess(String minCosine, String minLengthRatio, boolean calculateAll) {
+        List<HighLow> highLows = toHighLows(TestBars.lines(calculateAll ? 1_500 : 20_000).stream());
+        BigDecimal cosineMinValue = new BigDecimal(minCosine);
+        BigDecimal minLengthRation = new BigDecimal(minLengthRatio);
+
+        PatternSizeSweep sweep = PatternSizeSweep.of(highLows, 2, 12, cosineMinValue, minLengthRation, calculateAll);
+
+        for (int patternSize = 12; patternSize >= 2; patternSize--) {
+            assertThat(sweep.results(patternSize))
+                    .as("pattern size %d", patternSize)
+                    .isEqualTo(process(highLows, patternSize, cosineMinValue, minLengthRation, calculateAll));
+        }
+    }
+
+    @Test
+    void smallFileMatchesProcess() throws IOException, URISyntaxException {
+        Path file = Path.of(getClass().getResource("/fractalsPatterns.csv").toURI());
+        List<HighLow> highLows;
+        try (Stream<String> lines = Files.lines(file)) {
+            highLows = toHighLows(lines);
+        }
+
+        PatternSizeSweep sweep = PatternSizeSweep.of(file.toFile(), 1, 3, new BigDecimal("-1"), BigDecimal.ZERO, false);
+
+        for (int patternSize = 1; patternSize <= 3; patternSize++) {
+            assertThat(sweep.results(patternSize)).isEqualTo(process(highLows, patternSize, new BigDecimal("-1"), BigDecimal.ZERO, false));
+        }
+        assertThatThrownBy(() -> sweep.results(4)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
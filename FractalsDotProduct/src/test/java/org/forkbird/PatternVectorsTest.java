@@ -0,0 +1,51 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.forkbird.FractalsDotProduct.Fractal;
+import static org.forkbird.FractalsDotProduct.FractalsPattern;
+
+public class PatternVectorsTest {
+
+    @ParameterizedTest
+    @CsvSource({"1,1,2,2,1.0000,0.5000", "1,1,-1,1,0.0000,1.0000", "1,1,-1,-1,-1.0000,1.0000", "3,4,4,3,0.9600,1.0000"})
+    void cosineAndLengthRatio(String a1, String a2, String b1, String b2, String cos, String ratio) {
+        PatternVectors vectors = PatternVectors.of(List.of(pattern(a1, a2), pattern(b1, b2)));
+
+        assertThat(vectors.cosine(0, 1)).isEqualTo(new BigDecimal(cos));
+        assertThat(vectors.lengthRatio(0, 1)).isEqualTo(new BigDecimal(ratio));
+    }
+
+    @Test
+    void matchesBigDecimalPath() {
+        Random random = new Random(42);
+        List<FractalsPattern> patterns = IntStream.range(0, 200)
+                .mapToObj(i -> new FractalsPattern(IntStream.range(0, 6)
+                        .mapToObj(j -> new Fractal(null, null, BigDecimal.valueOf(random.nextInt(-2000, 2000), 4)))
+                        .toList()))
+                .toList();
+        PatternVectors vectors = PatternVectors.of(patterns);
+
+        for (int a = 0; a < patterns.size(); a++) {
+            for (int b = 0; b < patterns.size(); b++) {
+                assertThat(vectors.cosine(a, b)).isEqualTo(patterns.get(a).cosine(patterns.get(b)));
+                assertThat(vectors.lengthRatio(a, b)).isEqualTo(patterns.get(a).lengthRatio(patterns.get(b)));
+            }
+        }
+    }
+
+    private static FractalsPattern pattern(String... changes) {
+        return new FractalsPattern(Arrays.stream(changes)
+                .map(change -> new Fractal(null, null, new BigDecimal(change)))
+                .toList());
+    }
+}
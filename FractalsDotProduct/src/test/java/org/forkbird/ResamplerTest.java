@@ -0,0 +1,133 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.HighLow;
+import org.forkbird.Resampler.Timeframe;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.util.Comparator.reverseOrder;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forkbird.FractalsDotProduct.*;
+
+class ResamplerTest {
+
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.5");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.5");
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @EnumSource(value = Timeframe.class, names = {"H4", "D1", "W1"})
+    void aggregatesTheBarsOfEveryBucket(Timeframe timeframe) {
+        List<HighLow> hourly = weekdays(4_000);
+
+        List<HighLow> resampled = Resampler.resample(BarSeries.of(hourly), timeframe).toHighLows();
+
+        assertThat(resampled).isEqualTo(aggregate(hourly, timeframe));
+        assertThat(resampled).allMatch(bar -> bar.dateTime().getDayOfWeek() != DayOfWeek.SATURDAY);
+    }
+
+    @Test
+    void buildsEveryTimeframeFromTheShorterOne() {
+        List<HighLow> hourly = weekdays(4_000);
+        BarSeries bars = BarSeries.of(hourly);
+
+        Map<Timeframe, BarSeries> resampled = Resampler.resample(bars, List.of(Timeframe.W1, Timeframe.H4, Timeframe.D1));
+
+        assertThat(resampled).containsOnlyKeys(Timeframe.H4, Timeframe.D1, Timeframe.W1);
+        resampled.forEach((timeframe, series) -> assertThat(series.toHighLows()).isEqualTo(Resampler.resample(bars, timeframe).toHighLows()));
+        assertThat(resampled.get(Timeframe.W1).toHighLows()).allMatch(bar -> bar.dateTime().getDayOfWeek() == DayOfWeek.SUNDAY);
+    }
+
+    @Test
+    void rejectsTimeframesThatAreNotCoarserThanTheBars() {
+        List<HighLow> hourly = weekdays(4_000);
+        BarSeries daily = BarSeries.of(aggregate(hourly, Timeframe.D1));
+        BarSeries shifted = BarSeries.of(aggregate(hourly, Timeframe.D1).stream()
+                .map(bar -> new HighLow(bar.dateTime().plusHours(2), bar.high(), bar.low()))
+                .toList());
+
+        assertThat(Resampler.coarser(Timeframe.H4, BarSeries.of(hourly))).isTrue();
+        assertThat(Resampler.coarser(Timeframe.H1, BarSeries.of(hourly))).isFalse();
+        assertThat(Resampler.coarser(Timeframe.D1, daily)).isFalse();
+        assertThat(Resampler.coarser(Timeframe.W1, daily)).isTrue();
+        assertThat(Resampler.coarser(Timeframe.H4, shifted)).isFalse();
+        assertThat(Resampler.coarser(Timeframe.W1, shifted)).isTrue();
+        assertThat(Resampler.resample(daily, List.of(Timeframe.W1))).containsOnlyKeys(Timeframe.W1);
+        assertThatThrownBy(() -> Resampler.resample(daily, List.of(Timeframe.D1, Timeframe.W1)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("D1");
+    }
+
+    @Test
+    void scoresLikeAnExportOfTheTimeframe() throws IOException {
+        List<HighLow> hourly = weekdays(8_000);
+        File export = Files.write(dir.resolve("EURUSD.pro"), aggregate(hourly, Timeframe.H4).reversed().stream()
+                .map(bar -> "%s,%s,%s".formatted(dateTimeFormatter.format(bar.dateTime()), bar.high().toPlainString(), bar.low().toPlainString()))
+                .toList()).toFile();
+        List<HighLow> resampled = Resampler.resample(BarSeries.of(hourly), Timeframe.H4).toHighLows();
+
+        for (boolean calculateAll : List.of(false, true)) {
+            List<CosineResult> expected = processFile(export, 4, cosineMinValue, minLengthRatio, calculateAll);
+
+            assertThat(process(resampled, 4, cosineMinValue, minLengthRatio, calculateAll)).isNotEmpty().isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void parsesTheTimeframesOfARun() {
+        assertThat(Timeframe.list("")).isEmpty();
+        assertThat(Timeframe.list("W1, H4,D1,H4")).containsExactly(Timeframe.H4, Timeframe.D1, Timeframe.W1);
+        assertThat(Resampler.file(new File("prices", "EURUSD.pro"), Timeframe.D1)).isEqualTo(new File("prices", "EURUSD.pro.D1"));
+        assertThatThrownBy(() -> Timeframe.list("H4,MN1")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Hourly bars newest first, without Saturdays, so that weeks and days have gaps like a real export.
+     */
+    private static List<HighLow> weekdays(int count) {
+        return toHighLows(TestBars.lines(count).stream()).stream()
+                .filter(bar -> bar.dateTime().getDayOfWeek() != DayOfWeek.SATURDAY)
+                .toList();
+    }
+
+    /**
+     * The bars of {@code timeframe} by grouping {@code bars} on the truncated open time, newest first.
+     */
+    private static List<HighLow> aggregate(List<HighLow> bars, Timeframe timeframe) {
+        Map<ZonedDateTime, List<HighLow>> buckets = new TreeMap<>(reverseOrder());
+        for (HighLow bar : bars) {
+            ZonedDateTime hour = bar.dateTime().truncatedTo(ChronoUnit.HOURS);
+            ZonedDateTime start = switch (timeframe) {
+                case H4 -> hour.withHour(hour.getHour() / 4 * 4);
+                case D1 -> hour.truncatedTo(ChronoUnit.DAYS);
+                case W1 -> hour.truncatedTo(ChronoUnit.DAYS).minusDays(hour.getDayOfWeek().getValue() % 7);
+                default -> throw new IllegalArgumentException(timeframe.name());
+            };
+            buckets.computeIfAbsent(start, s -> new ArrayList<>()).add(bar);
+        }
+        return buckets.entrySet().stream()
+                .map(bucket -> new HighLow(bucket.getKey(),
+                        bucket.getValue().stream().map(HighLow::high).max(BigDecimal::compareTo).orElseThrow(),
+                        bucket.getValue().stream().map(HighLow::low).min(BigDecimal::compareTo).orElseThrow()))
+                .toList();
+    }
+}
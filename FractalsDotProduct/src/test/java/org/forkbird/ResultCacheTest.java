@@ -0,0 +1,161 @@
+package org.forkbird;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class ResultCacheTest {
+
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.5");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.5");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void identicalRequestsReadTheCachedResults() throws IOException {
+        File file = Files.write(dir.resolve("EURUSD.pro"), TestBars.lines(2_000)).toFile();
+        for (boolean calculateAll : List.of(false, true)) {
+            List<CosineResult> expected = process(load(file), 4, cosineMinValue, minLengthRatio, calculateAll);
+
+            List<CosineResult> computed = PatternSizeSweep.of(ResultCache.open(file), 3, 5, cosineMinValue, minLengthRatio, calculateAll).results(4);
+            ResultCache cache = ResultCache.open(file);
+            cache.changes();
+            List<CosineResult> cached = cache.results(cache.key(4, cosineMinValue, minLengthRatio, calculateAll), 4, () -> {
+                throw new AssertionError("not cached");
+            });
+
+            assertThat(computed).isEqualTo(expected).isNotEmpty();
+            assertThat(cached).isEqualTo(expected);
+            assertThat(cached).anyMatch(result -> result.afterTarget() != null);
+        }
+    }
+
+    @Test
+    void keysDependOnContentAndParameters() throws IOException {
+        File file = Files.write(dir.resolve("EURUSD.pro"), TestBars.lines(500)).toFile();
+        String key = ResultCache.open(file).key(4, cosineMinValue, minLengthRatio, false);
+
+        assertThat(ResultCache.open(file).key(4, new BigDecimal("0.50"), minLengthRatio, false)).isEqualTo(key);
+        assertThat(ResultCache.open(file).key(5, cosineMinValue, minLengthRatio, false)).isNotEqualTo(key);
+        assertThat(ResultCache.open(file).key(4, cosineMinValue, minLengthRatio, true)).isNotEqualTo(key);
+        assertThat(ResultCache.open(file).key(4, cosineMinValue, new BigDecimal("0.6"), false)).isNotEqualTo(key);
+        Files.writeString(file.toPath(), Files.readString(file.toPath()).replaceFirst("1\\.", "2."));
+        assertThat(ResultCache.open(file).key(4, cosineMinValue, minLengthRatio, false)).isNotEqualTo(key);
+    }
+
+    @Test
+    void appendedBarsExtendTheCachedChangeSeries() throws IOException {
+        List<String> bars = TestBars.lines(3_000);
+        Path path = Files.write(dir.resolve("EURUSD.pro"), bars.subList(0, 2_000));
+        ResultCache.open(path.toFile()).changes();
+        for (int count : new int[]{2_001, 2_002, 2_500, 3_000}) {
+            Files.write(path, bars.subList(Files.readAllLines(path).size(), count), StandardOpenOption.APPEND);
+            StageMetrics metrics = new StageMetrics("EURUSD.pro");
+
+            List<Fractal> changes = StageMetrics.within(metrics, () -> ResultCache.open(path.toFile()).changes());
+
+            assertThat(changes).isEqualTo(TestBars.changes(bars.subList(0, count)));
+            assertThat(stage(metrics.drainSummary(0), "fractals.in")).isLessThanOrEqualTo(500 + fractalSize - 1);
+        }
+    }
+
+    @Test
+    void rewrittenFilesAreReadAgain() throws IOException {
+        List<String> bars = TestBars.lines(2_000);
+        Path path = Files.write(dir.resolve("EURUSD.pro"), bars);
+        ResultCache.open(path.toFile()).changes();
+
+        Files.write(path, bars.subList(0, 1_500));
+        assertThat(ResultCache.open(path.toFile()).changes()).isEqualTo(TestBars.changes(bars.subList(0, 1_500)));
+
+        Files.write(path, bars.subList(500, 2_000));
+        assertThat(ResultCache.open(path.toFile()).changes()).isEqualTo(TestBars.changes(bars.subList(500, 2_000)));
+    }
+
+    @Test
+    void resultFilesAreWrittenOnceWhileTheyExist() throws IOException {
+        File file = Files.write(dir.resolve("EURUSD.pro"), TestBars.lines(2_000)).toFile();
+        PatternSizeSweep sweep = PatternSizeSweep.of(ResultCache.open(file), 4, 4, cosineMinValue, minLengthRatio, false);
+        List<CosineResult> results = sweep.results(4);
+
+        File written = sweep.resultFile(file, "2024-03-24", 4, results, 10);
+        File again = PatternSizeSweep.of(ResultCache.open(file), 4, 4, cosineMinValue, minLengthRatio, false).resultFile(file, "2024-03-24", 4, results, 10);
+        File otherLimit = sweep.resultFile(file, "2024-03-24", 4, results, 20);
+        Files.delete(written.toPath());
+        File rewritten = sweep.resultFile(file, "2024-03-24", 4, results, 10);
+        byte[] content = Files.readAllBytes(rewritten.toPath());
+        content[content.length / 2] ^= 1;
+        Files.write(rewritten.toPath(), content);
+        File afterEdit = sweep.resultFile(file, "2024-03-24", 4, results, 10);
+
+        assertThat(again).isEqualTo(written);
+        assertThat(otherLimit).isNotEqualTo(written);
+        assertThat(rewritten).isNotEqualTo(written).exists();
+        assertThat(afterEdit).isNotEqualTo(rewritten).exists();
+    }
+
+    @Test
+    void changesOfAnotherZoneAreReadAgain() throws IOException {
+        Path path = Files.write(dir.resolve("EURUSD.pro"), TestBars.lines(2_000));
+        ResultCache.open(path.toFile()).changes();
+        Path entry = ResultCache.directory(path).resolve("EURUSD.pro.changes");
+        String zone = dateTimeFormatter.getZone().getId();
+        String otherZone = zone.equals("America/New_York") ? "Europe/Warsaw" : "America/New_York";
+
+        StageMetrics cached = new StageMetrics("EURUSD.pro");
+        StageMetrics.within(cached, () -> ResultCache.open(path.toFile()).changes());
+        byte[] bytes = Files.readAllBytes(entry);
+        ByteArrayOutputStream otherEntry = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(otherEntry)) {
+            output.write(bytes, 0, 12);
+            output.writeUTF(otherZone);
+            int zoneEnd = 14 + zone.getBytes(StandardCharsets.UTF_8).length;
+            output.write(bytes, zoneEnd, bytes.length - zoneEnd);
+        }
+        Files.write(entry, otherEntry.toByteArray());
+        StageMetrics otherZoneMetrics = new StageMetrics("EURUSD.pro");
+        List<Fractal> changes = StageMetrics.within(otherZoneMetrics, () -> ResultCache.open(path.toFile()).changes());
+
+        assertThat(cached.drainSummary(0)).doesNotContain(" fractals.in=");
+        assertThat(otherZoneMetrics.drainSummary(0)).contains(" fractals.in=");
+        assertThat(changes).isEqualTo(TestBars.changes(path.toFile()));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntries() throws IOException {
+        Path cache = Files.createDirectories(dir.resolve("results"));
+        for (int i = 0; i < 5; i++) {
+            Path entry = Files.write(cache.resolve(i + ".results"), new byte[100]);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(1_000_000L * (i == 1 ? 10 : i)));
+        }
+
+        ResultCache.evict(cache, 250);
+
+        try (var entries = Files.list(cache)) {
+            assertThat(entries.map(entry -> entry.getFileName().toString())).containsExactlyInAnyOrder("1.results", "4.results");
+        }
+    }
+
+    private static long stage(String summary, String key) {
+        Matcher matcher = Pattern.compile(" " + Pattern.quote(key) + "=(\\d+)").matcher(summary);
+        assertThat(matcher.find()).isTrue();
+        return Long.parseLong(matcher.group(1));
+    }
+}
@@ -0,0 +1,102 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.ResultWriter.BinaryResults;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ResultWriterTest {
+
+    @Test
+    void csvIsTheChartOfEveryResultWithAFollowingTargetThenTheSortedSlopes() throws URISyntaxException, IOException {
+        List<CosineResult> cosineResults = FractalsDotProduct.processFile(file("/resultWriter.csv"), 2, new BigDecimal("0.95"), new BigDecimal("0.8"), true);
+        StringWriter csv = new StringWriter();
+
+        ResultWriter.writeCsv(cosineResults, Long.MAX_VALUE, csv);
+
+        assertThat(withoutZone(csv.toString())).isEqualTo(Files.readString(file("/resultWriterExpected.csv").toPath()));
+    }
+
+    @Test
+    void csvIsLimitedToTheFirstResultsWithAFollowingTarget() throws URISyntaxException, IOException {
+        List<CosineResult> cosineResults = FractalsDotProduct.processFile(file("/resultWriter.csv"), 2, new BigDecimal("0.95"), new BigDecimal("0.8"), true);
+        StringWriter csv = new StringWriter();
+
+        ResultWriter.writeCsv(cosineResults, 1, csv);
+
+        List<String> lines = csv.toString().lines().toList();
+        assertThat(lines).hasSize(2 + 2 + 1 + 1);
+        assertThat(lines.getFirst()).startsWith("Cosine base X target:;");
+        assertThat(lines.getLast()).isEqualTo(lines.getFirst().substring(lines.getFirst().lastIndexOf(';') + 1));
+    }
+
+    @Test
+    void binaryColumnsReadBack() throws URISyntaxException, IOException {
+        List<CosineResult> cosineResults = FractalsDotProduct.processFile(file("/resultWriter.csv"), 2, new BigDecimal("0.95"), new BigDecimal("0.8"), true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        ResultWriter.writeBinary(cosineResults, 2, Long.MAX_VALUE, output);
+        BinaryResults binary = BinaryResults.read(new ByteArrayInputStream(output.toByteArray()));
+
+        assertThat(binary.patternSize()).isEqualTo(2);
+        assertThat(output.size()).isEqualTo(16 + cosineResults.size() * (5 * Long.BYTES + 3 * Integer.BYTES));
+        assertThat(Arrays.stream(binary.cosines()).mapToObj(BinaryResults::decimal))
+                .containsExactlyElementsOf(cosineResults.stream().map(CosineResult::cosine).toList());
+        assertThat(Arrays.stream(binary.lengthRatios()).mapToObj(BinaryResults::decimal))
+                .containsExactlyElementsOf(cosineResults.stream().map(CosineResult::lengthRatio).toList());
+        assertThat(Arrays.stream(binary.afterCosines()).mapToObj(BinaryResults::decimal))
+                .containsExactlyElementsOf(cosineResults.stream().map(CosineResult::afterCosine).toList());
+        assertThat(Arrays.stream(binary.afterTargetSlopes()).mapToObj(BinaryResults::decimal))
+                .containsExactlyElementsOf(cosineResults.stream()
+                        .map(cr -> cr.afterTarget() != null ? cr.afterTarget().sort().calculateLinearRegressionA() : null)
+                        .toList());
+        assertThat(binary.targetFirst()[0]).isEqualTo(cosineResults.getFirst().target().fractals().getLast().dateTime().toEpochSecond());
+        assertThat(binary.targetLast()[0]).isEqualTo(cosineResults.getFirst().target().fractals().getFirst().dateTime().toEpochSecond());
+    }
+
+    @Test
+    void binaryRejectsOtherFiles() {
+        ByteArrayInputStream csv = new ByteArrayInputStream("Cosine base X target:;1.0000".getBytes());
+
+        assertThatThrownBy(() -> BinaryResults.read(csv))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void writeCreatesTheCsvNextToThePriceFile(@TempDir Path directory) throws URISyntaxException, IOException {
+        File priceFile = Files.copy(file("/resultWriter.csv").toPath(), directory.resolve("HL_EURUSD.pro")).toFile();
+        List<CosineResult> cosineResults = FractalsDotProduct.processFile(priceFile, 2, new BigDecimal("0.95"), new BigDecimal("0.8"), true);
+
+        File output = ResultWriter.write(priceFile, "2024-01-04", 2, cosineResults, Long.MAX_VALUE);
+
+        assertThat(output.getParentFile()).isEqualTo(directory.toFile());
+        assertThat(output.getName()).startsWith("HL_EURUSD.pro_2_2024-01-04_").endsWith(".csv");
+        assertThat(withoutZone(Files.readString(output.toPath()))).isEqualTo(Files.readString(file("/resultWriterExpected.csv").toPath()));
+    }
+
+    /**
+     * The dates are parsed in the default zone; the expected file keeps their local date-time only.
+     */
+    private static String withoutZone(String csv) {
+        return csv.replaceAll("(T\\d{2}:\\d{2}(:\\d{2})?)[^;\\n]*", "$1");
+    }
+
+    private File file(String filename) throws URISyntaxException {
+        return new File(this.getClass().getResource(filename).toURI());
+    }
+}
@@ -0,0 +1,198 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class SimilarityMetricTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"cosine", "pearson", "euclidean", "dtw"})
+    void boundsAreNeverBelowTheValue(String name) {
+        PatternVectors vectors = vectors(new Random(name.hashCode()), 200, 6);
+        SimilarityMetric metric = SimilarityMetric.of(name, vectors);
+        int pruned = 0;
+        for (int base = 0; base < vectors.count(); base += 7) {
+            double[] bounds = metric.upperBounds(base);
+            for (int target = 0; target < vectors.count(); target++) {
+                double value = metric.value(base, target, bounds[target], Double.NEGATIVE_INFINITY);
+                assertThat(bounds[target]).isGreaterThanOrEqualTo(value - 1e-12);
+                if (!PatternVectors.mayReach(bounds[target], 0.8)) {
+                    pruned++;
+                }
+            }
+        }
+        if (name.equals("euclidean") || name.equals("dtw")) {
+            assertThat(pruned).isPositive();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"euclidean", "dtw"})
+    void stopsEarlyOnlyBelowTheMinimum(String name) {
+        PatternVectors vectors = vectors(new Random(3), 100, 8);
+        SimilarityMetric metric = SimilarityMetric.of(name, vectors);
+        for (int base = 0; base < 10; base++) {
+            double[] bounds = metric.upperBounds(base);
+            for (int target = 0; target < vectors.count(); target++) {
+                double value = metric.value(base, target, bounds[target], Double.NEGATIVE_INFINITY);
+                double early = metric.value(base, target, bounds[target], 0.6);
+                assertThat(early).isIn(value, Double.NEGATIVE_INFINITY);
+                if (early != value) {
+                    assertThat(PatternVectors.mayReach(value, 0.6)).isFalse();
+                }
+            }
+        }
+    }
+
+    @Test
+    void dtwMatchesEveryWarpingPathWithinTheBand() {
+        PatternVectors vectors = vectors(new Random(4), 40, 5);
+        for (int band = 0; band <= 5; band++) {
+            SimilarityMetric dtw = new DtwMetric(vectors, band);
+            for (int base = 0; base < vectors.count(); base++) {
+                for (int target = 0; target < vectors.count(); target++) {
+                    double distance = Math.sqrt(warp(vectors, base, target, band, 0, 0));
+                    double expected = 1 - distance / (vectors.norm(base) + vectors.norm(target));
+                    assertThat(dtw.value(base, target, 1, Double.NEGATIVE_INFINITY)).isCloseTo(expected, within(1e-12));
+                }
+            }
+        }
+    }
+
+    @Test
+    void dtwWithoutWarpingIsEuclidean() {
+        PatternVectors vectors = vectors(new Random(5), 50, 6);
+        SimilarityMetric dtw = new DtwMetric(vectors, 0);
+        SimilarityMetric euclidean = SimilarityMetric.of("euclidean", vectors);
+
+        for (int target = 0; target < vectors.count(); target++) {
+            assertThat(dtw.value(0, target, 1, Double.NEGATIVE_INFINITY))
+                    .isCloseTo(euclidean.value(0, target, 1, Double.NEGATIVE_INFINITY), within(1e-12));
+        }
+    }
+
+    @Test
+    void dtwLinesUpShiftedPatterns() {
+        PatternVectors vectors = PatternVectors.of(List.of(
+                pattern("0.0010", "0.0030", "-0.0020", "0.0010", "0.0005"),
+                pattern("0.0010", "0.0010", "0.0030", "-0.0020", "0.0010")));
+
+        double dtw = new DtwMetric(vectors, 1).value(0, 1, 1, Double.NEGATIVE_INFINITY);
+        double euclidean = SimilarityMetric.of("euclidean", vectors).value(0, 1, 1, Double.NEGATIVE_INFINITY);
+
+        assertThat(dtw).isGreaterThan(0.9).isGreaterThan(euclidean + 0.3);
+    }
+
+    @Test
+    void pearsonIsTheCorrelationOfTheChanges() {
+        PatternVectors vectors = vectors(new Random(6), 30, 7);
+        SimilarityMetric pearson = SimilarityMetric.of("pearson", vectors);
+        double[] bounds = pearson.upperBounds(0);
+
+        for (int target = 0; target < vectors.count(); target++) {
+            assertThat(pearson.value(0, target, bounds[target], 0)).isCloseTo(correlation(vectors, 0, target), within(1e-12));
+        }
+        assertThat(pearson.reported(0, 1, 0.87654321)).isEqualTo(new BigDecimal("0.8765"));
+        assertThat(pearson.reported(0, 1, -0.87654321)).isEqualTo(new BigDecimal("-0.8765"));
+    }
+
+    @Test
+    void undefinedSimilaritiesNeverMatch() {
+        PatternVectors vectors = PatternVectors.of(List.of(
+                pattern("0.0000", "0.0000", "0.0000"),
+                pattern("0.0010", "0.0010", "0.0010"),
+                pattern("0.0010", "0.0020", "0.0030")));
+
+        assertThat(SimilarityMetric.of("pearson", vectors).upperBounds(2)).containsExactly(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 1.0);
+        assertThat(SimilarityMetric.of("euclidean", vectors).upperBounds(0)[0]).isEqualTo(Double.NEGATIVE_INFINITY);
+        assertThat(SimilarityMetric.of("dtw", vectors).upperBounds(0)[0]).isEqualTo(Double.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    void rejectsUnknownMetricsAndBands() {
+        PatternVectors vectors = vectors(new Random(7), 3, 3);
+
+        assertThatThrownBy(() -> SimilarityMetric.of("manhattan", vectors)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new DtwMetric(vectors, -1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Squared DTW distance by trying every step from cell {@code (i, j)}.
+     */
+    private static double warp(PatternVectors vectors, int a, int b, int band, int i, int j) {
+        int size = vectors.size();
+        if (Math.abs(i - j) > band) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double difference = vectors.change(a, i) - vectors.change(b, j);
+        double cost = difference * difference;
+        if (i == size - 1 && j == size - 1) {
+            return cost;
+        }
+        double best = Double.POSITIVE_INFINITY;
+        if (i < size - 1) {
+            best = Math.min(best, warp(vectors, a, b, band, i + 1, j));
+        }
+        if (j < size - 1) {
+            best = Math.min(best, warp(vectors, a, b, band, i, j + 1));
+        }
+        if (i < size - 1 && j < size - 1) {
+            best = Math.min(best, warp(vectors, a, b, band, i + 1, j + 1));
+        }
+        return cost + best;
+    }
+
+    private static double correlation(PatternVectors vectors, int a, int b) {
+        int size = vectors.size();
+        double meanA = 0;
+        double meanB = 0;
+        for (int j = 0; j < size; j++) {
+            meanA += vectors.change(a, j) / size;
+            meanB += vectors.change(b, j) / size;
+        }
+        double covariance = 0;
+        double varianceA = 0;
+        double varianceB = 0;
+        for (int j = 0; j < size; j++) {
+            covariance += (vectors.change(a, j) - meanA) * (vectors.change(b, j) - meanB);
+            varianceA += (vectors.change(a, j) - meanA) * (vectors.change(a, j) - meanA);
+            varianceB += (vectors.change(b, j) - meanB) * (vectors.change(b, j) - meanB);
+        }
+        return covariance / Math.sqrt(varianceA * varianceB);
+    }
+
+    private static PatternVectors vectors(Random random, int count, int size) {
+        List<FractalsPattern> patterns = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String[] changes = new String[size];
+            for (int j = 0; j < size; j++) {
+                changes[j] = BigDecimal.valueOf(random.nextInt(-40, 41), 4).toPlainString();
+            }
+            patterns.add(pattern(changes));
+        }
+        return PatternVectors.of(patterns);
+    }
+
+    private static FractalsPattern pattern(String... changes) {
+        ZonedDateTime time = ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        List<Fractal> fractals = new ArrayList<>();
+        for (int j = 0; j < changes.length; j++) {
+            fractals.add(new Fractal(time.plusHours(j), BigDecimal.ONE, new BigDecimal(changes[j])));
+        }
+        return new FractalsPattern(fractals);
+    }
+}
@@ -0,0 +1,77 @@
+package org.forkbird;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class StageMetricsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void summaryCountsItemsOfEveryStage() {
+        List<HighLow> highLows = toHighLows(TestBars.lines(2_000).stream());
+        StageMetrics metrics = new StageMetrics("test.pro");
+
+        List<CosineResult> cosineResults = StageMetrics.within(metrics,
+                () -> process(highLows, 4, new BigDecimal("0.9"), new BigDecimal("0.8"), true));
+        Map<String, String> summary = parse(metrics.drainSummary(4));
+        long fractals = Long.parseLong(summary.get("fractals.out"));
+        long patterns = Long.parseLong(summary.get("patterns.out"));
+
+        assertThat(summary).containsEntry("file", "test.pro").containsEntry("patternSize", "4")
+                .containsEntry("fractals.in", String.valueOf(highLows.size()))
+                .containsEntry("valueDiff.in", String.valueOf(fractals))
+                .containsEntry("valueDiff.out", String.valueOf(fractals - 1))
+                .containsEntry("patterns.out", String.valueOf(fractals - 1 - 4 + 1))
+                .containsEntry("score.in", String.valueOf(patterns * patterns))
+                .containsEntry("bounds.in", String.valueOf(patterns * patterns))
+                .containsEntry("following.out", String.valueOf(cosineResults.size()))
+                .containsKeys("score.ms", "score.bytes", "bounds.pruned", "total.ms");
+        assertThat(Long.parseLong(summary.get("fractals.bytes"))).isPositive();
+        assertThat(parse(metrics.drainSummary(4))).doesNotContainKey("fractals.ms");
+    }
+
+    @Test
+    void stagesAreRecordedAsJfrEvents() throws IOException {
+        List<HighLow> highLows = toHighLows(TestBars.lines(1_000).stream());
+        Path file = dir.resolve("stages.jfr");
+
+        List<CosineResult> cosineResults;
+        try (Recording recording = new Recording()) {
+            recording.enable("org.forkbird.Stage");
+            recording.start();
+            cosineResults = process(highLows, 4, new BigDecimal("0.5"), new BigDecimal("0.2"), false);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertThat(events).extracting(event -> event.getString("stage"))
+                .containsExactly("fractals", "valueDiff", "patterns", "index", "bounds", "score");
+        assertThat(events.getLast().getLong("outputItems")).isEqualTo(cosineResults.size());
+        assertThat(events.getFirst().getLong("inputItems")).isEqualTo(highLows.size());
+        assertThat(events).allSatisfy(event -> assertThat(event.getInt("patternSize")).isEqualTo(4));
+    }
+
+    private static Map<String, String> parse(String summary) {
+        assertThat(summary).startsWith("stages ");
+        return Arrays.stream(summary.substring("stages ".length()).split(" "))
+                .map(pair -> pair.split("=", 2))
+                .collect(Collectors.toMap(pair -> pair[0], pair -> pair[1]));
+    }
+}
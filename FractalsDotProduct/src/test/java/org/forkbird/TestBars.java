@@ -0,0 +1,55 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.forkbird.FractalsDotProduct.*;
+
+/**
+ * Price lines and change series shared by the tests.
+ */
+final class TestBars {
+
+    private static final DateTimeFormatter lineFormatter = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss");
+
+    private TestBars() {
+    }
+
+    /**
+     * {@code count} hourly bars from 2024-01-01, oldest first, as lines of a price file; the same for every call.
+     */
+    static List<String> lines(int count) {
+        Random random = new Random(5);
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+        List<String> lines = new ArrayList<>();
+        double price = 1.1;
+        for (int i = 0; i < count; i++) {
+            price += random.nextGaussian() * 0.002;
+            double high = price + random.nextDouble() * 0.001;
+            double low = price - random.nextDouble() * 0.001;
+            lines.add("%s,%.5f,%.5f".formatted(start.plusHours(i).format(lineFormatter), high, low));
+        }
+        return lines;
+    }
+
+    /**
+     * The change series of {@code lines}, newest first, computed from scratch.
+     */
+    static List<Fractal> changes(List<String> lines) {
+        return valueDiff(fractals(toHighLows(lines.stream())));
+    }
+
+    /**
+     * The change series of the price file, newest first, computed from scratch.
+     */
+    static List<Fractal> changes(File file) throws IOException {
+        return valueDiff(fractals(load(file)));
+    }
+}
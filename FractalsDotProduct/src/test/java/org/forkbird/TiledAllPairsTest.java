@@ -0,0 +1,88 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.IndexedPatterns;
+import org.forkbird.FractalsDotProduct.ScoredPair;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forkbird.FractalsDotProduct.*;
+
+class TiledAllPairsTest {
+
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.5");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.5");
+
+    @TempDir
+    Path spillDir;
+
+    @ParameterizedTest
+    @CsvSource({"0, 0", "50, 0", "0, 3", "40, 2"})
+    void spilledRunsMergeToTheResultsOfTheStreams(int topK, int topKPerBase) throws IOException {
+        IndexedPatterns indexedPatterns = indexedPatterns(1_500, 3);
+        List<CosineResult> expected = calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRatio, topK, topKPerBase);
+        StageMetrics metrics = new StageMetrics("EURUSD.pro");
+
+        List<CosineResult> tiled = StageMetrics.within(metrics, () -> TiledAllPairs.calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRatio, topK, topKPerBase, 512, 8 * 1024, spillDir));
+
+        assertThat(tiled).hasSizeGreaterThan(20).containsExactlyElementsOf(expected);
+        assertThat(tiled.getFirst()).isEqualTo(expected.getFirst()).isNotSameAs(tiled.getFirst());
+        assertThat(metrics.drainSummary(3)).contains(" spill.in=").contains(" merge.in=").contains(" bounds.pruned=");
+        try (var runs = Files.list(spillDir)) {
+            assertThat(runs).isEmpty();
+        }
+    }
+
+    @Test
+    void keepsEverythingInMemoryWithinTheBudget() throws IOException {
+        IndexedPatterns indexedPatterns = indexedPatterns(1_000, 4);
+        StageMetrics metrics = new StageMetrics("EURUSD.pro");
+
+        List<CosineResult> tiled = StageMetrics.within(metrics, () -> TiledAllPairs.calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRatio, 0, 0, 4096, 1 << 20, spillDir));
+
+        assertThat(tiled).containsExactlyElementsOf(calculateAllCosines(indexedPatterns, cosineMinValue, minLengthRatio));
+        assertThat(metrics.drainSummary(4)).contains(" spill.in=0 spill.out=0");
+    }
+
+    @Test
+    void keysSortLikeBestFirst() {
+        PatternVectors vectors = indexedPatterns(500, 3).vectors();
+        Random random = new Random(8);
+        List<ScoredPair> pairs = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            int base = random.nextInt(vectors.count());
+            int target = random.nextInt(vectors.count());
+            pairs.add(new ScoredPair(base, target, BigDecimal.valueOf(random.nextInt(-10_000, 10_001), 4), vectors.lengthRatio(base, target)));
+        }
+        List<ScoredPair> distinct = pairs.stream().filter(p -> pairs.stream().filter(q -> q.base() == p.base() && q.target() == p.target()).count() == 1).toList();
+
+        List<ScoredPair> byKey = distinct.stream()
+                .sorted(Comparator.comparingLong(p -> TiledAllPairs.key(p.cosine(), p.base(), p.target())))
+                .toList();
+
+        assertThat(byKey).containsExactlyElementsOf(distinct.stream().sorted(ScoredPair.bestFirst).toList());
+        assertThat(byKey).allMatch(p -> TiledAllPairs.scoredPair(vectors, TiledAllPairs.key(p.cosine(), p.base(), p.target())).equals(p));
+    }
+
+    @Test
+    void rejectsValuesOutsideTheKeyRange() {
+        assertThatThrownBy(() -> TiledAllPairs.key(new BigDecimal("1.0001"), 0, 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static IndexedPatterns indexedPatterns(int bars, int patternSize) {
+        return IndexedPatterns.of(fractalsPatterns(TestBars.changes(TestBars.lines(bars)), patternSize));
+    }
+}
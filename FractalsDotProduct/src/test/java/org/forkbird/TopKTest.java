@@ -0,0 +1,53 @@
+package org.forkbird;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.groupingBy;
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.forkbird.FractalsDotProduct.*;
+
+public class TopKTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 7, 50, 100000})
+    void globalTopKIsPrefixOfFullResult(int k) {
+        IndexedPatterns indexedPatterns = IndexedPatterns.of(randomPatterns());
+        List<CosineResult> all = FractalsDotProduct.calculateAllCosines(indexedPatterns, new BigDecimal("0.5"), new BigDecimal("0.3"));
+
+        List<CosineResult> top = FractalsDotProduct.calculateAllCosines(indexedPatterns, new BigDecimal("0.5"), new BigDecimal("0.3"), k, 0);
+
+        assertThat(top).containsExactlyElementsOf(all.subList(0, Math.min(k, all.size())));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 100000})
+    void topKPerBaseIsPrefixOfEveryBase(int k) {
+        IndexedPatterns indexedPatterns = IndexedPatterns.of(randomPatterns());
+        List<CosineResult> all = FractalsDotProduct.calculateAllCosines(indexedPatterns, BigDecimal.ZERO, BigDecimal.ZERO);
+        Map<FractalsPattern, List<CosineResult>> allPerBase = all.stream().collect(groupingBy(CosineResult::base));
+
+        List<CosineResult> top = FractalsDotProduct.calculateAllCosines(indexedPatterns, BigDecimal.ZERO, BigDecimal.ZERO, 0, k);
+
+        Map<FractalsPattern, List<CosineResult>> perBase = top.stream().collect(groupingBy(CosineResult::base));
+        assertThat(perBase).hasSameSizeAs(allPerBase);
+        allPerBase.forEach((base, results) -> assertThat(perBase.get(base)).containsExactlyElementsOf(results.subList(0, Math.min(k, results.size()))));
+        assertThat(top).containsExactlyElementsOf(all.stream().filter(result -> perBase.get(result.base()).contains(result)).toList());
+    }
+
+    private static List<FractalsPattern> randomPatterns() {
+        Random random = new Random(7);
+        ZonedDateTime start = ZonedDateTime.parse("2024.01.01 00:00:00", dateTimeFormatter);
+        List<Fractal> fractals = IntStream.range(0, 120)
+                .mapToObj(i -> new Fractal(start.minusHours(i), BigDecimal.ONE, BigDecimal.valueOf(random.nextInt(-50, 50), 4)))
+                .toList();
+        return FractalsDotProduct.fractalsPatterns(fractals, 4);
+    }
+}
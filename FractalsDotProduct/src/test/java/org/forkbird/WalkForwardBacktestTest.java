@@ -0,0 +1,124 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.WalkForwardBacktest.Cell;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class WalkForwardBacktestTest {
+
+    private static final List<BigDecimal> minCosines = decimals("0.9", "-0.5", "0.5", "0.99");
+    private static final List<BigDecimal> minLengthRatios = decimals("0", "0.5", "0.9");
+
+    @Test
+    void countsTheSameMatchesAsScoringEveryAnchorAgainstItsHistory() {
+        List<Fractal> changes = changes(new Random(1), 120);
+
+        List<Cell> grid = WalkForwardBacktest.run(changes, 2, 5, minCosines, minLengthRatios);
+
+        assertThat(grid).hasSize(4 * 4 * 3);
+        assertThat(grid).containsExactlyElementsOf(everyAnchor(changes, 2, 5));
+        assertThat(grid).anyMatch(cell -> cell.hits() > 0 && cell.misses() > 0);
+    }
+
+    @Test
+    void matchesUseOnlyTheDataKnownAtTheAnchor() {
+        List<Fractal> changes = changes(new Random(2), 150);
+        List<Fractal> newestChanged = new ArrayList<>(changes);
+        newestChanged.set(0, new Fractal(changes.getFirst().dateTime(), BigDecimal.ONE, new BigDecimal("0.0100")));
+
+        List<Cell> grid = WalkForwardBacktest.run(changes, 3, 3, minCosines, minLengthRatios);
+        List<Cell> changedGrid = WalkForwardBacktest.run(newestChanged, 3, 3, minCosines, minLengthRatios);
+
+        assertThat(changedGrid.stream().map(Cell::matches)).containsExactlyElementsOf(grid.stream().map(Cell::matches).toList());
+        assertThat(changedGrid).isNotEqualTo(grid);
+    }
+
+    @Test
+    void forecastSuccessIsTheRatioOfHitsToMisses() {
+        assertThat(new Cell(4, BigDecimal.ONE, BigDecimal.ONE, 5, 2, 3).forecastSuccess()).contains(new BigDecimal("0.6666"));
+        assertThat(new Cell(4, BigDecimal.ONE, BigDecimal.ONE, 2, 2, 0).forecastSuccess()).isEmpty();
+        assertThat(new Cell(4, BigDecimal.ONE, BigDecimal.ONE, 5, 2, 3).hitRate()).isEqualTo(0.4);
+    }
+
+    @Test
+    void rejectsInvalidPatternSizes() {
+        assertThatThrownBy(() -> WalkForwardBacktest.run(List.of(), 0, 3, minCosines, minLengthRatios))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> WalkForwardBacktest.run(List.of(), 4, 3, minCosines, minLengthRatios))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Every anchor with a known following pattern against every target whose following pattern ends no later than
+     * the anchor, with the BigDecimal scores of a regular run.
+     */
+    private static List<Cell> everyAnchor(List<Fractal> changes, int minPatternSize, int maxPatternSize) {
+        List<BigDecimal> cosines = minCosines.stream().sorted().toList();
+        List<BigDecimal> ratios = minLengthRatios.stream().sorted().toList();
+        List<Cell> grid = new ArrayList<>();
+        for (int size = minPatternSize; size <= maxPatternSize; size++) {
+            for (BigDecimal minCosine : cosines) {
+                for (BigDecimal minRatio : ratios) {
+                    long hits = 0;
+                    long misses = 0;
+                    int patterns = changes.size() - size + 1;
+                    for (int anchor = size - 1; anchor < patterns; anchor++) {
+                        for (int target = anchor + size - 1; target < patterns; target++) {
+                            FractalsPattern base = pattern(changes, anchor, size);
+                            FractalsPattern targetPattern = pattern(changes, target, size);
+                            if (isZero(base) || isZero(targetPattern)
+                                    || base.cosine(targetPattern).compareTo(minCosine) < 0
+                                    || base.lengthRatio(targetPattern).compareTo(minRatio) < 0) {
+                                continue;
+                            }
+                            FractalsPattern afterBase = pattern(changes, anchor - size + 1, size);
+                            FractalsPattern afterTarget = pattern(changes, target - size + 1, size);
+                            if (!isZero(afterBase) && !isZero(afterTarget) && afterBase.cosine(afterTarget).compareTo(FractalsDotProduct.minAfterCosine) > 0) {
+                                hits++;
+                            } else {
+                                misses++;
+                            }
+                        }
+                    }
+                    grid.add(new Cell(size, minCosine, minRatio, hits + misses, hits, misses));
+                }
+            }
+        }
+        return grid;
+    }
+
+    private static FractalsPattern pattern(List<Fractal> changes, int index, int size) {
+        return new FractalsPattern(changes.subList(index, index + size));
+    }
+
+    private static boolean isZero(FractalsPattern pattern) {
+        return pattern.fractals().stream().allMatch(fractal -> fractal.change().signum() == 0);
+    }
+
+    /**
+     * Changes of a few units of the last digit, so that equal directions, zero patterns and boundary values are common.
+     */
+    private static List<Fractal> changes(Random random, int count) {
+        ZonedDateTime newest = ZonedDateTime.of(2024, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        List<Fractal> changes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            changes.add(new Fractal(newest.minusHours(i), BigDecimal.ONE, BigDecimal.valueOf(random.nextInt(-3, 4), 4)));
+        }
+        return changes;
+    }
+
+    private static List<BigDecimal> decimals(String... values) {
+        return List.of(values).stream().map(BigDecimal::new).toList();
+    }
+}
@@ -0,0 +1,62 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.HighLow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FractalsDotProduct#calculateAllCosines} and the {@code calculateAll} variant of
+ * {@link FractalsDotProduct#process}. Both score every pair of patterns, so they run on smaller histories than
+ * {@link StageBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class AllPairsBenchmarks {
+
+    private static final int patternSize = 8;
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.9");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.8");
+
+    @Param({"1000", "10000"})
+    public int bars;
+
+    private List<HighLow> highLows;
+    private List<FractalsPattern> fractalsPatterns;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        highLows = FractalsDotProduct.toHighLows(BarSeriesGenerator.lines(bars, 42).stream());
+        fractalsPatterns = FractalsDotProduct.fractalsPatterns(
+                List.copyOf(FractalsDotProduct.valueDiff(FractalsDotProduct.fractals(highLows))), patternSize);
+    }
+
+    @Benchmark
+    public List<CosineResult> calculateAllCosines() {
+        return FractalsDotProduct.calculateAllCosines(fractalsPatterns, cosineMinValue, minLengthRatio);
+    }
+
+    @Benchmark
+    public List<CosineResult> process() {
+        return FractalsDotProduct.process(highLows, patternSize, cosineMinValue, minLengthRatio, true);
+    }
+}
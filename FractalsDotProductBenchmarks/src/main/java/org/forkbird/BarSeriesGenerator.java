@@ -0,0 +1,34 @@
+package org.forkbird;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic price history: an hourly random walk written as {@code yyyy.MM.dd HH:mm:ss,high,low} lines,
+ * oldest first, like the CSV files of the tests.
+ */
+final class BarSeriesGenerator {
+
+    private static final DateTimeFormatter lineFormatter = DateTimeFormatter.ofPattern("yyyy.MM.dd HH:mm:ss");
+
+    private BarSeriesGenerator() {
+    }
+
+    static List<String> lines(int count, long seed) {
+        Random random = new Random(seed);
+        LocalDateTime start = LocalDateTime.of(2000, 1, 3, 0, 0);
+        List<String> lines = new ArrayList<>(count);
+        double price = 1.1;
+        for (int i = 0; i < count; i++) {
+            price = Math.max(0.01, price + random.nextGaussian() * 0.002);
+            double high = price + random.nextDouble() * 0.001;
+            double low = price - random.nextDouble() * 0.001;
+            lines.add(String.format(Locale.ROOT, "%s,%.5f,%.5f", start.plusHours(i).format(lineFormatter), high, low));
+        }
+        return lines;
+    }
+}
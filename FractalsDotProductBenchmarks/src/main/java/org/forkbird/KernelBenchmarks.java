@@ -0,0 +1,70 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One base pattern against all patterns, the inner loop of {@link FractalsDotProduct#calculateCosines} and
+ * {@link FractalsDotProduct#calculateAllCosines}: {@code pairwise} calls {@link PatternVectors#cosineValue} for every
+ * target, {@code scalar} and {@code vector} are the batch {@link CosineKernel}s. Every operation scores the next base,
+ * so the whole column block is streamed each time. Compare with {@code -jvmArgsAppend -XX:ActiveProcessorCount=1};
+ * the kernels are single-threaded anyway.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmarks {
+
+    @Param({"pairwise", "scalar", "vector"})
+    public String kernel;
+
+    @Param({"10000", "150000"})
+    public int bars;
+
+    @Param({"8", "16"})
+    public int patternSize;
+
+    private PatternVectors vectors;
+    private CosineKernel cosineKernel;
+    private double[] cosines;
+    private int base;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<FractalsPattern> fractalsPatterns = FractalsDotProduct.fractalsPatterns(List.copyOf(FractalsDotProduct.valueDiff(
+                FractalsDotProduct.fractals(FractalsDotProduct.toHighLows(BarSeriesGenerator.lines(bars, 42).stream())))), patternSize);
+        vectors = PatternVectors.of(fractalsPatterns);
+        cosineKernel = kernel.equals("pairwise") ? null : CosineKernel.of(kernel);
+        cosines = new double[vectors.count()];
+    }
+
+    @Benchmark
+    public double[] cosines() {
+        base = (base + 1) % vectors.count();
+        if (cosineKernel == null) {
+            for (int target = 0; target < cosines.length; target++) {
+                cosines[target] = vectors.cosineValue(base, target);
+            }
+        } else {
+            cosineKernel.cosines(vectors, base, cosines);
+        }
+        return cosines;
+    }
+}
@@ -0,0 +1,118 @@
+package org.forkbird;
+
+import org.forkbird.FractalsDotProduct.CosineResult;
+import org.forkbird.FractalsDotProduct.Fractal;
+import org.forkbird.FractalsDotProduct.FractalsPattern;
+import org.forkbird.FractalsDotProduct.HighLow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark per stage of {@link FractalsDotProduct#process}, each fed with the output of the previous stages as
+ * the pipeline produces it, plus the whole run of a price file: {@link FractalsDotProduct#load} and {@code process},
+ * so a parsing regression shows up there as well. The input of every stage, including the price file, is built once
+ * per trial, so only the stage itself is measured.
+ * <p>
+ * {@code fractalsPatterns} (and therefore {@code process}) receives the {@code LinkedList} returned by
+ * {@code valueDiff}, exactly like the pipeline does; its cost grows quadratically, so expect the 1M-bar trials of
+ * those two benchmarks to be slow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class StageBenchmarks {
+
+    private static final int patternSize = 8;
+    private static final BigDecimal cosineMinValue = new BigDecimal("0.9");
+    private static final BigDecimal minLengthRatio = new BigDecimal("0.8");
+    private static final int minCosineResults = 50;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int bars;
+
+    private List<String> lines;
+    private File file;
+    private List<HighLow> highLows;
+    private List<Fractal> fractals;
+    private List<Fractal> changes;
+    private List<FractalsPattern> fractalsPatterns;
+    private List<CosineResult> cosineResults;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        lines = BarSeriesGenerator.lines(bars, 42);
+        file = Files.write(Files.createTempFile("stages", ".pro"), lines).toFile();
+        highLows = FractalsDotProduct.toHighLows(lines.stream());
+        fractals = FractalsDotProduct.fractals(highLows);
+        changes = FractalsDotProduct.valueDiff(fractals);
+        fractalsPatterns = FractalsDotProduct.fractalsPatterns(List.copyOf(changes), patternSize);
+        cosineResults = FractalsDotProduct.calculateCosines(fractalsPatterns, cosineMinValue, minLengthRatio);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public List<HighLow> load() throws IOException {
+        return FractalsDotProduct.load(file);
+    }
+
+    @Benchmark
+    public List<HighLow> toHighLows() {
+        return FractalsDotProduct.toHighLows(lines.stream());
+    }
+
+    @Benchmark
+    public List<Fractal> fractals() {
+        return FractalsDotProduct.fractals(highLows);
+    }
+
+    @Benchmark
+    public List<Fractal> valueDiff() {
+        return FractalsDotProduct.valueDiff(fractals);
+    }
+
+    @Benchmark
+    public List<FractalsPattern> fractalsPatterns() {
+        return FractalsDotProduct.fractalsPatterns(changes, patternSize);
+    }
+
+    @Benchmark
+    public List<CosineResult> calculateCosines() {
+        return FractalsDotProduct.calculateCosines(fractalsPatterns, cosineMinValue, minLengthRatio);
+    }
+
+    @Benchmark
+    public void writeCsv() throws IOException {
+        ResultWriter.writeCsv(cosineResults, minCosineResults, Writer.nullWriter());
+    }
+
+    @Benchmark
+    public List<CosineResult> process() throws IOException {
+        return FractalsDotProduct.process(FractalsDotProduct.load(file), patternSize, cosineMinValue, minLengthRatio, false);
+    }
+}